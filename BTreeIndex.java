@@ -0,0 +1,468 @@
+package DBMS;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+// Ordered index over one column for range and prefix predicates. Only the tree's metadata is
+// serialized as the index file; nodes are stored separately through FileManager and loaded on
+// demand, so a lookup reads O(log n) nodes and an insert rewrites only the nodes on its path.
+// Keys are ordered by Condition.compare. Leaves are chained left to right for ordered scans.
+public class BTreeIndex implements Index {
+    private static final long serialVersionUID = 1L;
+    static int order = 64;
+    static int nodeCacheSize = 1024;
+
+    private final String tableName;
+    private final String columnName;
+    private int root;
+    private int nodeCount;
+    private int rowCount;
+    private int distinctCount;
+    private transient LinkedHashMap<Integer, Node> nodes;
+    private transient long nodesRead;
+
+    // Leaves hold keys with their row ids (rows[i][0] is the number of ids in use) and the id of
+    // the next leaf, or -1. Internal nodes hold keys.size() + 1 children; keys[i] is the smallest
+    // key under children[i + 1].
+    private static class Node {
+        boolean leaf;
+        ArrayList<String> keys = new ArrayList<>();
+        ArrayList<int[]> rows = new ArrayList<>();
+        ArrayList<Integer> children = new ArrayList<>();
+        int next = -1;
+
+        Node(boolean leaf) {
+            this.leaf = leaf;
+        }
+    }
+
+    private static class Split {
+        final String key;
+        final int right;
+
+        Split(String key, int right) {
+            this.key = key;
+            this.right = right;
+        }
+    }
+
+    public BTreeIndex(String tableName, String columnName) {
+        this.tableName = tableName;
+        this.columnName = columnName;
+        clear();
+    }
+
+    private void clear() {
+        FileManager.deleteIndexNodes(tableName, columnName);
+        nodes = null;
+        nodeCount = 0;
+        rowCount = 0;
+        distinctCount = 0;
+        root = newNode(new Node(true));
+    }
+
+    // Bulk load: sort once and build the tree bottom up, writing every node exactly once
+    public void initialize(String[] values) {
+        clear();
+        Integer[] order = new Integer[values.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing((Integer i) -> values[i], Condition::compare));
+        rowCount = values.length;
+        if (values.length == 0) {
+            return;
+        }
+
+        ArrayList<Integer> level = new ArrayList<>();
+        ArrayList<String> minKeys = new ArrayList<>();
+        Node leaf = null;
+        int leafId = -1;
+        for (int i = 0; i < order.length; i++) {
+            String key = values[order[i]];
+            if (leaf != null && Condition.compare(leaf.keys.get(leaf.keys.size() - 1), key) == 0) {
+                addRow(leaf, leaf.keys.size() - 1, order[i]);
+                continue;
+            }
+            if (leaf == null || leaf.keys.size() == BTreeIndex.order) {
+                Node next = new Node(true);
+                int nextId = leaf == null ? root : nodeCount++;
+                if (leaf != null) {
+                    leaf.next = nextId;
+                    writeNode(leafId, leaf);
+                }
+                leaf = next;
+                leafId = nextId;
+                cache().put(leafId, leaf);
+                level.add(leafId);
+                minKeys.add(key);
+            }
+            leaf.keys.add(key);
+            leaf.rows.add(new int[] { 1, order[i] });
+            distinctCount++;
+        }
+        writeNode(leafId, leaf);
+
+        while (level.size() > 1) {
+            ArrayList<Integer> parents = new ArrayList<>();
+            ArrayList<String> parentKeys = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += BTreeIndex.order + 1) {
+                Node n = new Node(false);
+                for (int j = i; j < Math.min(i + BTreeIndex.order + 1, level.size()); j++) {
+                    if (j > i) {
+                        n.keys.add(minKeys.get(j));
+                    }
+                    n.children.add(level.get(j));
+                }
+                parents.add(newNode(n));
+                parentKeys.add(minKeys.get(i));
+            }
+            level = parents;
+            minKeys = parentKeys;
+        }
+        root = level.get(0);
+    }
+
+    public void insert(String value) {
+        Split s = insert(root, value, rowCount);
+        if (s != null) {
+            Node n = new Node(false);
+            n.keys.add(s.key);
+            n.children.add(root);
+            n.children.add(s.right);
+            root = newNode(n);
+        }
+        rowCount++;
+    }
+
+    private Split insert(int nodeId, String key, int row) {
+        Node n = node(nodeId);
+        if (n.leaf) {
+            int i = position(n, key);
+            if (i < n.keys.size() && Condition.compare(n.keys.get(i), key) == 0) {
+                addRow(n, i, row);
+                writeNode(nodeId, n);
+                return null;
+            }
+            n.keys.add(i, key);
+            n.rows.add(i, new int[] { 1, row });
+            distinctCount++;
+            if (n.keys.size() <= order) {
+                writeNode(nodeId, n);
+                return null;
+            }
+            int mid = n.keys.size() / 2;
+            Node right = new Node(true);
+            right.keys.addAll(n.keys.subList(mid, n.keys.size()));
+            right.rows.addAll(n.rows.subList(mid, n.rows.size()));
+            n.keys.subList(mid, n.keys.size()).clear();
+            n.rows.subList(mid, n.rows.size()).clear();
+            right.next = n.next;
+            int rightId = newNode(right);
+            n.next = rightId;
+            writeNode(nodeId, n);
+            return new Split(right.keys.get(0), rightId);
+        }
+
+        int c = childIndex(n, key);
+        Split s = insert(n.children.get(c), key, row);
+        if (s == null) {
+            return null;
+        }
+        n.keys.add(c, s.key);
+        n.children.add(c + 1, s.right);
+        if (n.keys.size() <= order) {
+            writeNode(nodeId, n);
+            return null;
+        }
+        int mid = n.keys.size() / 2;
+        String up = n.keys.get(mid);
+        Node right = new Node(false);
+        right.keys.addAll(n.keys.subList(mid + 1, n.keys.size()));
+        right.children.addAll(n.children.subList(mid + 1, n.children.size()));
+        n.keys.subList(mid, n.keys.size()).clear();
+        n.children.subList(mid + 1, n.children.size()).clear();
+        int rightId = newNode(right);
+        writeNode(nodeId, n);
+        return new Split(up, rightId);
+    }
+
+    private static void addRow(Node leaf, int i, int row) {
+        int[] rows = leaf.rows.get(i);
+        if (rows[0] + 1 == rows.length) {
+            rows = Arrays.copyOf(rows, rows.length * 2);
+            leaf.rows.set(i, rows);
+        }
+        rows[++rows[0]] = row;
+    }
+
+    // First position in the leaf whose key is >= key
+    private static int position(Node n, String key) {
+        int lo = 0;
+        int hi = n.keys.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Condition.compare(n.keys.get(mid), key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // Child to descend into: the number of separators <= key
+    private static int childIndex(Node n, String key) {
+        int lo = 0;
+        int hi = n.keys.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Condition.compare(n.keys.get(mid), key) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // Leaf that would hold key; a null key (lowest in the order) gives the leftmost leaf
+    private int findLeaf(String key) {
+        int id = root;
+        Node n = node(id);
+        while (!n.leaf) {
+            id = n.children.get(key == null ? 0 : childIndex(n, key));
+            n = node(id);
+        }
+        return id;
+    }
+
+    private int[] lookup(String value) {
+        Node n = node(findLeaf(value));
+        int i = position(n, value);
+        if (i < n.keys.size() && Condition.compare(n.keys.get(i), value) == 0) {
+            return n.rows.get(i);
+        }
+        return null;
+    }
+
+    // Walks the leaves in key order from the condition's lower bound, passing the row ids of every
+    // key that satisfies it; stops at the first key past its upper bound. A null condition visits
+    // every row in key order, nulls first.
+    public void scan(Condition cond, IntConsumer rows) {
+        if (cond != null && cond.getOp() == Condition.Op.IN) {
+            String[] values = cond.getValues().clone();
+            Arrays.sort(values, Condition::compare);
+            for (int i = 0; i < values.length; i++) {
+                int[] ids = (i > 0 && Condition.compare(values[i - 1], values[i]) == 0) ? null : lookup(values[i]);
+                for (int j = 1; ids != null && j <= ids[0]; j++) {
+                    rows.accept(ids[j]);
+                }
+            }
+            return;
+        }
+        String low = cond == null ? null : cond.lowerBound();
+        int id = findLeaf(low);
+        Node n = node(id);
+        int i = low == null ? 0 : position(n, low);
+        while (true) {
+            for (; i < n.keys.size(); i++) {
+                String key = n.keys.get(i);
+                if (cond != null && cond.isPast(key)) {
+                    return;
+                }
+                if (cond == null || cond.test(key)) {
+                    int[] ids = n.rows.get(i);
+                    for (int j = 1; j <= ids[0]; j++) {
+                        rows.accept(ids[j]);
+                    }
+                }
+            }
+            if (n.next < 0) {
+                return;
+            }
+            n = node(n.next);
+            i = 0;
+        }
+    }
+
+    public Bitmap matching(Condition cond) {
+        Bitmap res = new Bitmap();
+        scan(cond, res::set);
+        res.setLength(rowCount);
+        return res;
+    }
+
+    public Bitmap matching(String... values) {
+        Bitmap res = new Bitmap();
+        for (String value : values) {
+            int[] ids = lookup(value);
+            for (int j = 1; ids != null && j <= ids[0]; j++) {
+                res.set(ids[j]);
+            }
+        }
+        res.setLength(rowCount);
+        return res;
+    }
+
+    public int cardinality(String value) {
+        int[] ids = lookup(value);
+        return ids == null ? 0 : ids[0];
+    }
+
+    public int distinctCount() {
+        return distinctCount;
+    }
+
+    // In key order, from the leaf chain
+    public Map<String, Integer> valueCounts() {
+        LinkedHashMap<String, Integer> res = new LinkedHashMap<>();
+        for (Node n = node(findLeaf(null)); ; n = node(n.next)) {
+            for (int i = 0; i < n.keys.size(); i++) {
+                res.put(n.keys.get(i), n.rows.get(i)[0]);
+            }
+            if (n.next < 0) {
+                return res;
+            }
+        }
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public String getBitstream(String value) {
+        return lookup(value) != null ? matching(value).toBitString() : null;
+    }
+
+    public String getColumnName() {
+        return columnName;
+    }
+
+    // Nodes read from disk since the index was loaded, for checking that lookups stay logarithmic
+    public long getNodesRead() {
+        return nodesRead;
+    }
+
+    // The node cache reorders itself on every get, so all access to it is synchronized
+    private synchronized LinkedHashMap<Integer, Node> cache() {
+        if (nodes == null) {
+            nodes = new LinkedHashMap<Integer, Node>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Node> eldest) {
+                    return size() > nodeCacheSize;
+                }
+            };
+        }
+        return nodes;
+    }
+
+    private int newNode(Node n) {
+        int id = nodeCount++;
+        writeNode(id, n);
+        return id;
+    }
+
+    // Nodes are written through, so dropping one from the cache never loses data
+    private synchronized void writeNode(int id, Node n) {
+        cache().put(id, n);
+        FileManager.storeIndexNode(tableName, columnName, id, encode(n));
+    }
+
+    private synchronized Node node(int id) {
+        Node n = cache().get(id);
+        if (n == null) {
+            byte[] bytes = FileManager.loadIndexNode(tableName, columnName, id);
+            if (bytes == null) {
+                throw new IllegalStateException("Missing node " + id + " of index " + tableName + "/" + columnName);
+            }
+            n = decode(bytes);
+            nodesRead++;
+            cache().put(id, n);
+        }
+        return n;
+    }
+
+    private static byte[] encode(Node n) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeBoolean(n.leaf);
+            out.writeInt(n.keys.size());
+            for (String key : n.keys) {
+                if (key == null) {
+                    out.writeInt(-1);
+                } else {
+                    byte[] b = key.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(b.length);
+                    out.write(b);
+                }
+            }
+            if (n.leaf) {
+                for (int[] ids : n.rows) {
+                    out.writeInt(ids[0]);
+                    for (int j = 1; j <= ids[0]; j++) {
+                        out.writeInt(ids[j]);
+                    }
+                }
+                out.writeInt(n.next);
+            } else {
+                for (int child : n.children) {
+                    out.writeInt(child);
+                }
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Node decode(byte[] bytes) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            Node n = new Node(in.readBoolean());
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int len = in.readInt();
+                if (len < 0) {
+                    n.keys.add(null);
+                } else {
+                    byte[] b = new byte[len];
+                    in.readFully(b);
+                    n.keys.add(new String(b, StandardCharsets.UTF_8));
+                }
+            }
+            if (n.leaf) {
+                for (int i = 0; i < count; i++) {
+                    int[] ids = new int[in.readInt() + 1];
+                    ids[0] = ids.length - 1;
+                    for (int j = 1; j < ids.length; j++) {
+                        ids[j] = in.readInt();
+                    }
+                    n.rows.add(ids);
+                }
+                n.next = in.readInt();
+            } else {
+                for (int i = 0; i <= count; i++) {
+                    n.children.add(in.readInt());
+                }
+            }
+            return n;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,48 +1,112 @@
 package DBMS;
 
-import java.io.Serializable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.HashMap;
+import java.util.Map;
 
-public class BitMapIndex implements Serializable {
-    private static final long serialVersionUID = 1L;
-    private HashMap<String, StringBuilder> bitmaps;
+public class BitMapIndex implements Index {
+    private static final long serialVersionUID = 2L;
+    private HashMap<String, Bitmap> bitmaps;
     private int rowCount;
+    // Popcount per value, rebuilt on first use after loading and kept current by insert
+    private transient HashMap<String, Integer> counts;
 
     public BitMapIndex() {
         bitmaps = new HashMap<>();
         rowCount = 0;
     }
 
+    // Index files from before the packed format hold one StringBuilder of '0'/'1' chars per value
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        @SuppressWarnings("unchecked")
+        Map<String, Object> stored = (Map<String, Object>) (Map<String, ?>) bitmaps;
+        for (Map.Entry<String, Object> e : stored.entrySet()) {
+            if (e.getValue() instanceof CharSequence) {
+                CharSequence bits = (CharSequence) e.getValue();
+                Bitmap bitmap = new Bitmap();
+                for (int i = 0; i < bits.length(); i++) {
+                    if (bits.charAt(i) == '1') {
+                        bitmap.set(i);
+                    }
+                }
+                e.setValue(bitmap);
+            }
+        }
+    }
+
     public void initialize(String[] values) {
         bitmaps.clear(); // Ensure we start fresh
+        counts = null;
         rowCount = 0;
         for (String value : values) {
             insert(value);
         }
     }
 
+    // Only the inserted value's bitmap is touched; every other bitmap is implicitly zero up to rowCount
     public void insert(String value) {
-        
-        bitmaps.putIfAbsent(value, new StringBuilder());
-        
-        for (StringBuilder bitmap : bitmaps.values()) {
-            while (bitmap.length() < rowCount) {
-                bitmap.append('0');
+        bitmaps.computeIfAbsent(value, k -> new Bitmap()).set(rowCount);
+        if (counts != null) {
+            counts.merge(value, 1, Integer::sum);
+        }
+        rowCount++;
+    }
+
+    // Copy padded to rowCount; the stored bitmap is not touched so concurrent readers can share it
+    public Bitmap getBitmap(String value) {
+        Bitmap bitmap = bitmaps.get(value);
+        if (bitmap == null) {
+            return null;
+        }
+        Bitmap res = bitmap.copy();
+        res.setLength(rowCount);
+        return res;
+    }
+
+    // Fresh bitmap of the rows holding any of the given values, safe for the caller to modify in place
+    public Bitmap matching(String... values) {
+        Bitmap res = new Bitmap();
+        res.setLength(rowCount);
+        for (String value : values) {
+            Bitmap bitmap = bitmaps.get(value);
+            if (bitmap != null) {
+                res.orInPlace(bitmap);
             }
         }
-        
-        bitmaps.get(value).append('1');
-        
-        for (String key : bitmaps.keySet()) {
-            if (!key.equals(value)) {
-                bitmaps.get(key).append('0');
+        return res;
+    }
+
+    public int cardinality(String value) {
+        return counts().getOrDefault(value, 0);
+    }
+
+    private synchronized HashMap<String, Integer> counts() {
+        if (counts == null) {
+            HashMap<String, Integer> res = new HashMap<>();
+            for (Map.Entry<String, Bitmap> e : bitmaps.entrySet()) {
+                res.put(e.getKey(), e.getValue().cardinality());
             }
+            counts = res;
         }
-        rowCount++;
+        return counts;
+    }
+
+    public int distinctCount() {
+        return bitmaps.size();
+    }
+
+    public Map<String, Integer> valueCounts() {
+        return new HashMap<>(counts());
+    }
+
+    public int getRowCount() {
+        return rowCount;
     }
 
     public String getBitstream(String value) {
-        StringBuilder bitmap = bitmaps.get(value);
-        return bitmap != null ? bitmap.toString() : null;
+        Bitmap bitmap = getBitmap(value);
+        return bitmap != null ? bitmap.toBitString() : null;
     }
 }
\ No newline at end of file
@@ -0,0 +1,219 @@
+package DBMS;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+public class Bitmap implements Serializable {
+    private static final long serialVersionUID = 1L;
+    // words[0] holds word number wordOffset; words outside the array are implicitly zero,
+    // so a bitmap only stores the span between its first and last set bit
+    private long[] words;
+    private int wordOffset;
+    private int length;
+
+    public Bitmap() {
+        this.words = new long[0];
+        this.wordOffset = 0;
+        this.length = 0;
+    }
+
+    private static int wordIndex(int bit) {
+        return bit >>> 6;
+    }
+
+    private long word(int w) {
+        int i = w - wordOffset;
+        return i >= 0 && i < words.length ? words[i] : 0L;
+    }
+
+    private void ensureWord(int w) {
+        if (words.length == 0) {
+            words = new long[1];
+            wordOffset = w;
+        } else if (w < wordOffset) {
+            long[] grown = new long[words.length + (wordOffset - w)];
+            System.arraycopy(words, 0, grown, wordOffset - w, words.length);
+            words = grown;
+            wordOffset = w;
+        } else if (w - wordOffset >= words.length) {
+            words = Arrays.copyOf(words, Math.max(w - wordOffset + 1, words.length * 2));
+        }
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public void setLength(int newLength) {
+        if (newLength > length) {
+            length = newLength;
+        }
+    }
+
+    public void set(int bit) {
+        int w = wordIndex(bit);
+        ensureWord(w);
+        words[w - wordOffset] |= 1L << bit;
+        setLength(bit + 1);
+    }
+
+    public void append(boolean bit) {
+        if (bit) {
+            set(length);
+        } else {
+            length++;
+        }
+    }
+
+    public boolean get(int bit) {
+        if (bit < 0 || bit >= length) {
+            return false;
+        }
+        return (word(wordIndex(bit)) & (1L << bit)) != 0;
+    }
+
+    public int cardinality() {
+        int count = 0;
+        for (long w : words) {
+            count += Long.bitCount(w);
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        for (long w : words) {
+            if (w != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int nextSetBit(int from) {
+        if (from < 0) {
+            from = 0;
+        }
+        int w = Math.max(wordIndex(from), wordOffset);
+        int end = wordOffset + words.length;
+        if (w >= end) {
+            return -1;
+        }
+        long word = words[w - wordOffset];
+        if (w == wordIndex(from)) {
+            word &= -1L << from;
+        }
+        while (true) {
+            if (word != 0) {
+                int bit = (w << 6) + Long.numberOfTrailingZeros(word);
+                return bit < length ? bit : -1;
+            }
+            if (++w >= end) {
+                return -1;
+            }
+            word = words[w - wordOffset];
+        }
+    }
+
+    public Bitmap copy() {
+        Bitmap res = new Bitmap();
+        res.words = words.clone();
+        res.wordOffset = wordOffset;
+        res.length = length;
+        return res;
+    }
+
+    // Rewrites this bitmap as a plain array starting at word 0 so the in-place operations
+    // below can run straight loops over both word arrays
+    private void expand(int newLength) {
+        setLength(newLength);
+        int count = wordIndex(length - 1) + 1;
+        if (length == 0) {
+            count = 0;
+        }
+        if (wordOffset == 0 && words.length == count) {
+            return;
+        }
+        long[] dense = new long[count];
+        int from = Math.min(wordOffset, count);
+        int n = Math.max(0, Math.min(words.length, count - wordOffset));
+        System.arraycopy(words, 0, dense, from, n);
+        words = dense;
+        wordOffset = 0;
+    }
+
+    private void clearTail() {
+        if (words.length > 0 && (length & 63) != 0) {
+            words[words.length - 1] &= -1L >>> (64 - (length & 63));
+        }
+    }
+
+    public Bitmap andInPlace(Bitmap other) {
+        expand(Math.max(length, other.length));
+        int lo = Math.min(other.wordOffset, words.length);
+        int hi = Math.min(other.wordOffset + other.words.length, words.length);
+        Arrays.fill(words, 0, lo, 0L);
+        for (int i = lo; i < hi; i++) {
+            words[i] &= other.words[i - other.wordOffset];
+        }
+        Arrays.fill(words, Math.max(lo, hi), words.length, 0L);
+        return this;
+    }
+
+    public Bitmap orInPlace(Bitmap other) {
+        expand(Math.max(length, other.length));
+        int lo = Math.min(other.wordOffset, words.length);
+        int hi = Math.min(other.wordOffset + other.words.length, words.length);
+        for (int i = lo; i < hi; i++) {
+            words[i] |= other.words[i - other.wordOffset];
+        }
+        return this;
+    }
+
+    public Bitmap andNotInPlace(Bitmap other) {
+        expand(Math.max(length, other.length));
+        int lo = Math.min(other.wordOffset, words.length);
+        int hi = Math.min(other.wordOffset + other.words.length, words.length);
+        for (int i = lo; i < hi; i++) {
+            words[i] &= ~other.words[i - other.wordOffset];
+        }
+        return this;
+    }
+
+    public Bitmap notInPlace() {
+        expand(length);
+        for (int i = 0; i < words.length; i++) {
+            words[i] = ~words[i];
+        }
+        clearTail();
+        return this;
+    }
+
+    public static Bitmap and(Bitmap a, Bitmap b) {
+        return a.copy().andInPlace(b);
+    }
+
+    public static Bitmap or(Bitmap a, Bitmap b) {
+        return a.copy().orInPlace(b);
+    }
+
+    public static Bitmap andNot(Bitmap a, Bitmap b) {
+        return a.copy().andNotInPlace(b);
+    }
+
+    public static Bitmap not(Bitmap a) {
+        return a.copy().notInPlace();
+    }
+
+    public String toBitString() {
+        StringBuilder res = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            res.append(get(i) ? '1' : '0');
+        }
+        return res.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toBitString();
+    }
+}
@@ -0,0 +1,201 @@
+package DBMS;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+public class BufferPool {
+    private static class Frame {
+        String tableName;
+        int pageNumber;
+        Page page;
+        boolean dirty;
+        boolean referenced;
+        int pinCount;
+
+        Frame(String tableName, int pageNumber, Page page) {
+            this.tableName = tableName;
+            this.pageNumber = pageNumber;
+            this.page = page;
+        }
+    }
+
+    private final HashMap<String, Frame> frames;
+    private final ArrayList<Frame> clock;
+    private int capacity;
+    private int hand;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writeBacks;
+
+    public BufferPool(int capacity) {
+        this.frames = new HashMap<>();
+        this.clock = new ArrayList<>();
+        this.capacity = capacity;
+        this.hand = 0;
+    }
+
+    private static String key(String tableName, int pageNumber) {
+        return tableName + "/" + pageNumber;
+    }
+
+    public synchronized Page get(String tableName, int pageNumber) {
+        Frame f = frames.get(key(tableName, pageNumber));
+        if (f == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        f.referenced = true;
+        return f.page;
+    }
+
+    // Returns false when every frame is pinned and the page could not be cached
+    public synchronized boolean put(String tableName, int pageNumber, Page page, boolean dirty) {
+        Frame f = frames.get(key(tableName, pageNumber));
+        if (f == null) {
+            if (capacity <= 0 || (clock.size() >= capacity && !evict())) {
+                return false;
+            }
+            f = new Frame(tableName, pageNumber, page);
+            frames.put(key(tableName, pageNumber), f);
+            clock.add(f);
+        }
+        f.page = page;
+        f.dirty |= dirty;
+        f.referenced = true;
+        return true;
+    }
+
+    public synchronized Page pin(String tableName, int pageNumber) {
+        Frame f = frames.get(key(tableName, pageNumber));
+        if (f == null) {
+            return null;
+        }
+        f.pinCount++;
+        f.referenced = true;
+        return f.page;
+    }
+
+    public synchronized void unpin(String tableName, int pageNumber, boolean dirty) {
+        Frame f = frames.get(key(tableName, pageNumber));
+        if (f != null && f.pinCount > 0) {
+            f.pinCount--;
+            f.dirty |= dirty;
+        }
+    }
+
+    // CLOCK sweep: a referenced frame gets a second chance, pinned frames are skipped
+    private boolean evict() {
+        for (int i = 0; i < 2 * clock.size(); i++) {
+            if (hand >= clock.size()) {
+                hand = 0;
+            }
+            Frame f = clock.get(hand);
+            if (f.pinCount == 0 && !f.referenced) {
+                writeBack(f);
+                frames.remove(key(f.tableName, f.pageNumber));
+                clock.remove(hand);
+                evictions++;
+                return true;
+            }
+            f.referenced = false;
+            hand++;
+        }
+        return false;
+    }
+
+    private void writeBack(Frame f) {
+        if (f.dirty) {
+            FileManager.writeTablePage(f.tableName, f.pageNumber, f.page);
+            f.dirty = false;
+            writeBacks++;
+        }
+    }
+
+    public synchronized void flush() {
+        for (Frame f : clock) {
+            writeBack(f);
+        }
+    }
+
+    public synchronized void flush(String tableName) {
+        for (Frame f : clock) {
+            if (f.tableName.equals(tableName)) {
+                writeBack(f);
+            }
+        }
+    }
+
+    // Writes back and drops every cached page of the table so the next reads see the files on disk
+    public synchronized void discard(String tableName) {
+        Iterator<Frame> it = clock.iterator();
+        while (it.hasNext()) {
+            Frame f = it.next();
+            if (f.tableName.equals(tableName)) {
+                writeBack(f);
+                frames.remove(key(f.tableName, f.pageNumber));
+                it.remove();
+            }
+        }
+        hand = 0;
+    }
+
+    // Drops every cached page of the table without writing it back
+    public synchronized void drop(String tableName) {
+        Iterator<Frame> it = clock.iterator();
+        while (it.hasNext()) {
+            Frame f = it.next();
+            if (f.tableName.equals(tableName)) {
+                frames.remove(key(f.tableName, f.pageNumber));
+                it.remove();
+            }
+        }
+        hand = 0;
+    }
+
+    public synchronized void clear() {
+        frames.clear();
+        clock.clear();
+        hand = 0;
+    }
+
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+        while (clock.size() > Math.max(capacity, 0)) {
+            if (!evict()) {
+                break;
+            }
+        }
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int size() {
+        return clock.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void resetStats() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        writeBacks = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BufferPool [pages=" + clock.size() + "/" + capacity + ", hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + ", writeBacks=" + writeBacks + "]";
+    }
+}
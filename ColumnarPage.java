@@ -0,0 +1,185 @@
+package DBMS;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// Columnar page layout (page version 2, all ints big-endian):
+//   header:   magic, version, row count, column count
+//   columns:  one int per column, the byte offset of its block
+//   block:    dictionary size, the distinct values as length-prefixed UTF-8 (-1 for null), the code
+//             width in bytes (1, 2 or 4), then one code per row
+// Each column is decoded on its own and only when first touched, so a scan that reads a few
+// columns never decodes the rest, and predicates compare codes instead of strings.
+class ColumnarPage {
+    static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+
+    private final ByteBuffer image;
+    private final int rowCount;
+    private final int columnCount;
+    private final String[][] dictionaries;
+    private final ArrayList<HashMap<String, Integer>> codesByValue;
+    private final int[] codeOffsets;
+    private final int[] widths;
+
+    ColumnarPage(ByteBuffer image) {
+        this.image = image;
+        this.rowCount = image.getInt(8);
+        this.columnCount = image.getInt(12);
+        this.dictionaries = new String[columnCount][];
+        this.codesByValue = new ArrayList<>(Collections.nCopies(columnCount, (HashMap<String, Integer>) null));
+        this.codeOffsets = new int[columnCount];
+        this.widths = new int[columnCount];
+    }
+
+    int rowCount() {
+        return rowCount;
+    }
+
+    private synchronized String[] dictionary(int column) {
+        if (dictionaries[column] == null) {
+            int pos = image.getInt(HEADER_SIZE + 4 * column);
+            String[] dict = new String[image.getInt(pos)];
+            pos += 4;
+            for (int i = 0; i < dict.length; i++) {
+                int len = image.getInt(pos);
+                pos += 4;
+                if (len >= 0) {
+                    byte[] bytes = new byte[len];
+                    image.get(pos, bytes);
+                    dict[i] = new String(bytes, StandardCharsets.UTF_8);
+                    pos += len;
+                }
+            }
+            widths[column] = image.get(pos);
+            codeOffsets[column] = pos + 1;
+            dictionaries[column] = dict;
+        }
+        return dictionaries[column];
+    }
+
+    int code(int slot, int column) {
+        dictionary(column);
+        int pos = codeOffsets[column] + slot * widths[column];
+        switch (widths[column]) {
+            case 1:
+                return image.get(pos) & 0xFF;
+            case 2:
+                return image.getShort(pos) & 0xFFFF;
+            default:
+                return image.getInt(pos);
+        }
+    }
+
+    // Code of value in this page's dictionary for the column, or -1 if no row holds it
+    synchronized int codeOf(int column, String value) {
+        if (column >= columnCount) {
+            return value == null ? 0 : -1;
+        }
+        if (codesByValue.get(column) == null) {
+            String[] dict = dictionary(column);
+            HashMap<String, Integer> codes = new HashMap<>();
+            for (int i = 0; i < dict.length; i++) {
+                codes.put(dict[i], i);
+            }
+            codesByValue.set(column, codes);
+        }
+        Integer code = codesByValue.get(column).get(value);
+        return code != null ? code : -1;
+    }
+
+    boolean hasColumn(int column) {
+        return column < columnCount;
+    }
+
+    String getField(int slot, int column) {
+        if (slot < 0 || slot >= rowCount) {
+            throw new IndexOutOfBoundsException("Slot " + slot + " out of " + rowCount);
+        }
+        if (column >= columnCount) {
+            return null;
+        }
+        return dictionary(column)[code(slot, column)];
+    }
+
+    String[] getRecord(int slot) {
+        String[] record = new String[columnCount];
+        for (int j = 0; j < columnCount; j++) {
+            record[j] = getField(slot, j);
+        }
+        return record;
+    }
+
+    static byte[] encode(List<String[]> records) {
+        int columnCount = 0;
+        for (String[] record : records) {
+            columnCount = Math.max(columnCount, record.length);
+        }
+        byte[][] blocks = new byte[columnCount][];
+        int size = HEADER_SIZE + 4 * columnCount;
+        for (int j = 0; j < columnCount; j++) {
+            blocks[j] = encodeColumn(records, j);
+            size += blocks[j].length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(Page.MAGIC).putInt(VERSION).putInt(records.size()).putInt(columnCount);
+        int offset = HEADER_SIZE + 4 * columnCount;
+        for (byte[] block : blocks) {
+            buf.putInt(offset);
+            offset += block.length;
+        }
+        for (byte[] block : blocks) {
+            buf.put(block);
+        }
+        return buf.array();
+    }
+
+    private static byte[] encodeColumn(List<String[]> records, int column) {
+        LinkedHashMap<String, Integer> dict = new LinkedHashMap<>();
+        int[] codes = new int[records.size()];
+        for (int i = 0; i < codes.length; i++) {
+            String[] record = records.get(i);
+            String value = column < record.length ? record[column] : null;
+            Integer code = dict.get(value);
+            if (code == null) {
+                code = dict.size();
+                dict.put(value, code);
+            }
+            codes[i] = code;
+        }
+        int width = dict.size() <= 0x100 ? 1 : dict.size() <= 0x10000 ? 2 : 4;
+        byte[][] values = new byte[dict.size()][];
+        int size = 4 + 1 + width * codes.length;
+        int k = 0;
+        for (String value : dict.keySet()) {
+            values[k] = value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+            size += 4 + (values[k] != null ? values[k].length : 0);
+            k++;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(values.length);
+        for (byte[] value : values) {
+            if (value == null) {
+                buf.putInt(-1);
+            } else {
+                buf.putInt(value.length).put(value);
+            }
+        }
+        buf.put((byte) width);
+        for (int code : codes) {
+            if (width == 1) {
+                buf.put((byte) code);
+            } else if (width == 2) {
+                buf.putShort((short) code);
+            } else {
+                buf.putInt(code);
+            }
+        }
+        return buf.array();
+    }
+}
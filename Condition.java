@@ -0,0 +1,181 @@
+package DBMS;
+
+import java.util.Arrays;
+
+// A single-column predicate for selectWhere/selectOrdered. Values compare numerically when both
+// sides parse as numbers and as strings otherwise; nulls never satisfy a range or prefix condition.
+public class Condition {
+    public enum Op {
+        EQ, IN, LT, LE, GT, GE, BETWEEN, PREFIX
+    }
+
+    private final String column;
+    private final Op op;
+    private final String[] values;
+
+    private Condition(String column, Op op, String... values) {
+        this.column = column;
+        this.op = op;
+        this.values = values;
+    }
+
+    public static Condition eq(String column, String value) {
+        return new Condition(column, Op.EQ, value);
+    }
+
+    public static Condition in(String column, String... values) {
+        return new Condition(column, Op.IN, values);
+    }
+
+    public static Condition lt(String column, String value) {
+        return new Condition(column, Op.LT, value);
+    }
+
+    public static Condition le(String column, String value) {
+        return new Condition(column, Op.LE, value);
+    }
+
+    public static Condition gt(String column, String value) {
+        return new Condition(column, Op.GT, value);
+    }
+
+    public static Condition ge(String column, String value) {
+        return new Condition(column, Op.GE, value);
+    }
+
+    // Inclusive on both ends
+    public static Condition between(String column, String low, String high) {
+        return new Condition(column, Op.BETWEEN, low, high);
+    }
+
+    public static Condition prefix(String column, String prefix) {
+        return new Condition(column, Op.PREFIX, prefix);
+    }
+
+    public String getColumn() {
+        return column;
+    }
+
+    public Op getOp() {
+        return op;
+    }
+
+    public String[] getValues() {
+        return values;
+    }
+
+    public boolean isEquality() {
+        return op == Op.EQ || op == Op.IN;
+    }
+
+    // Lower bound of the keys that can match, or null when unbounded below
+    public String lowerBound() {
+        switch (op) {
+            case EQ:
+            case GT:
+            case GE:
+            case BETWEEN:
+                return values[0];
+            case PREFIX:
+                // Numbers sort by value, so keys sharing a numeric-looking prefix are not contiguous
+                return values[0].isEmpty() || "+-.0123456789".indexOf(values[0].charAt(0)) >= 0 ? null : values[0];
+            default:
+                return null;
+        }
+    }
+
+    public boolean test(String value) {
+        if (op == Op.EQ || op == Op.IN) {
+            return Arrays.asList(values).contains(value);
+        }
+        if (value == null) {
+            return false;
+        }
+        switch (op) {
+            case LT:
+                return compare(value, values[0]) < 0;
+            case LE:
+                return compare(value, values[0]) <= 0;
+            case GT:
+                return compare(value, values[0]) > 0;
+            case GE:
+                return compare(value, values[0]) >= 0;
+            case BETWEEN:
+                return compare(value, values[0]) >= 0 && compare(value, values[1]) <= 0;
+            default:
+                return value.startsWith(values[0]);
+        }
+    }
+
+    // True once key is past every value this condition can match, so an ordered scan can stop
+    public boolean isPast(String key) {
+        if (key == null) {
+            return false;
+        }
+        switch (op) {
+            case EQ:
+            case LT:
+            case LE:
+                return compare(key, values[values.length - 1]) > 0;
+            case BETWEEN:
+                return compare(key, values[1]) > 0;
+            case PREFIX:
+                return !isNumber(key) && !key.startsWith(values[0]) && key.compareTo(values[0]) > 0;
+            default:
+                return false;
+        }
+    }
+
+    // Plain decimals only, so words Double accepts such as NaN or Infinity still sort as strings
+    private static boolean isNumber(String s) {
+        if (s.isEmpty() || "+-.0123456789".indexOf(s.charAt(0)) < 0
+                || !Character.isDigit(s.charAt(s.length() - 1)) && s.charAt(s.length() - 1) != '.') {
+            return false;
+        }
+        try {
+            Double.parseDouble(s);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // Total order used by conditions and by BTreeIndex: nulls first, numbers by value, then strings
+    public static int compare(String a, String b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        boolean na = isNumber(a);
+        boolean nb = isNumber(b);
+        if (na && nb) {
+            int res = Double.compare(Double.parseDouble(a), Double.parseDouble(b));
+            return res != 0 ? res : a.compareTo(b);
+        }
+        if (na != nb) {
+            return na ? -1 : 1;
+        }
+        return a.compareTo(b);
+    }
+
+    @Override
+    public String toString() {
+        switch (op) {
+            case EQ:
+                return column + "=" + values[0];
+            case IN:
+                return column + " IN " + Arrays.toString(values);
+            case LT:
+                return column + "<" + values[0];
+            case LE:
+                return column + "<=" + values[0];
+            case GT:
+                return column + ">" + values[0];
+            case GE:
+                return column + ">=" + values[0];
+            case BETWEEN:
+                return column + " BETWEEN " + values[0] + " AND " + values[1];
+            default:
+                return column + " LIKE " + values[0] + "%";
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package DBMS;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Pulls the pages of a table one at a time and yields the matching records, so memory stays
+// bounded by the current page. Stops reading once limit records have been returned.
+// Reads the table as of the snapshot it was opened on, without holding the table lock, so
+// inserts continue while it is open. Closing the cursor records its trace entry.
+public class Cursor implements Iterator<String[]>, AutoCloseable {
+    private final Table table;
+    private final String[] cond;
+    private final String description;
+    private final int pageCount;
+    private final int lastPageSize;
+    private final int limit;
+    private final long startTime;
+    private Page page;
+    private int pageNumber;
+    private int slot;
+    private String[] next;
+    private int returned;
+    private int pagesRead;
+    private boolean closed;
+
+    // A negative limit means no limit
+    public Cursor(Table table, Table.Snapshot snapshot, String[] cond, String description, int limit) {
+        this.table = table;
+        this.cond = cond;
+        this.description = description;
+        this.pageCount = snapshot.getPageCount();
+        this.lastPageSize = snapshot.lastPageSize;
+        this.limit = limit;
+        this.startTime = System.nanoTime();
+        this.pageNumber = -1;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !closed && (limit < 0 || returned < limit)) {
+            next = advance();
+        }
+        return next != null;
+    }
+
+    @Override
+    public String[] next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String[] res = next;
+        next = null;
+        returned++;
+        return res;
+    }
+
+    private String[] advance() {
+        while (true) {
+            if (page != null && slot < page.size()) {
+                int current = slot++;
+                if (page.matches(current, cond)) {
+                    return page.getRecord(current);
+                }
+                continue;
+            }
+            if (++pageNumber >= pageCount) {
+                page = null;
+                return null;
+            }
+            if (!table.mayContain(pageNumber, cond)) {
+                page = null;
+                continue;
+            }
+            page = FileManager.loadTablePage(table.getName(), pageNumber);
+            if (page != null && pageNumber == pageCount - 1 && page.size() > lastPageSize) {
+                page = page.copy(lastPageSize);
+            }
+            slot = 0;
+            if (page != null) {
+                pagesRead++;
+            }
+        }
+    }
+
+    public Stream<String[]> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(this::close);
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            page = null;
+            next = null;
+            table.addTrace(new TraceEvent(TraceEvent.Type.SCAN, "Scan condition:" + description
+                    + ", limit:" + limit + ", pages read:" + pagesRead + ", records:" + returned,
+                    System.nanoTime() - startTime, pagesRead, returned));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Cursor [table=" + table.getName() + ", cond=" + Arrays.toString(cond) + ", page=" + pageNumber
+                + ", returned=" + returned + "]";
+    }
+}
@@ -1,323 +1,1197 @@
 package DBMS;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class DBApp {
     static int dataPageSize = 2;
+    // createIndex picks a hash index when distinct values / rows is at least this ratio
+    static double hashIndexCardinalityRatio = 0.5;
+    // selectIndex scans the table instead of intersecting indexes when it expects more than this
+    // fraction of the rows to match the indexed conditions
+    static double indexScanSelectivity = 0.5;
+    // One reader/writer lock per table: selects share it, anything that changes the table, its
+    // pages or its indexes holds it exclusively
+    private static final ConcurrentHashMap<String, ReentrantReadWriteLock> tableLocks = new ConcurrentHashMap<>();
 
     public static void createTable(String tableName, String[] columnsNames) {
-        Table t = new Table(tableName, columnsNames);
-        FileManager.storeTable(tableName, t);
+        Lock lock = lockFor(tableName).writeLock();
+        lock.lock();
+        try {
+            FileManager.dropTableState(tableName);
+            Table t = new Table(tableName, columnsNames);
+            FileManager.storeTable(tableName, t);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public static void insert(String tableName, String[] record) {
-        Table t = FileManager.loadTable(tableName);
-        if (t == null) {
-            throw new IllegalArgumentException("Table " + tableName + " does not exist");
+    // A columnar table stores each page column by column with per-page dictionaries
+    public static void createTable(String tableName, String[] columnsNames, boolean columnar) {
+        Lock lock = lockFor(tableName).writeLock();
+        lock.lock();
+        try {
+            FileManager.dropTableState(tableName);
+            Table t = new Table(tableName, columnsNames);
+            t.setColumnar(columnar);
+            FileManager.storeTable(tableName, t);
+        } finally {
+            lock.unlock();
         }
-        t.insert(record);
+    }
+
+    public static void insert(String tableName, String[] record) {
+        Lock lock = lockFor(tableName).writeLock();
+        lock.lock();
+        try {
+            Table t = FileManager.loadTable(tableName);
+            if (t == null) {
+                throw new IllegalArgumentException("Table " + tableName + " does not exist");
+            }
+            t.insert(record);
        
-        for (String colName : t.getIndexedColumns()) {
-            int colIndex = t.getColumnIndex(colName);
-            String value = record[colIndex];
-            BitMapIndex index = FileManager.loadTableIndex(tableName, colName);
-            if (index == null) {
-                index = new BitMapIndex();
+            for (String colName : t.getIndexedColumns()) {
+                int colIndex = t.getColumnIndex(colName);
+                String value = record[colIndex];
+                Index index = FileManager.loadIndex(tableName, colName);
+                if (index == null) {
+                    // The index file is gone or unreadable: rebuild it, as the same kind, from the rows,
+                    // this one included, instead of starting an index that only knows the new row
+                    createIndex(tableName, colName, t.getIndexKind(colName));
+                    continue;
+                }
+                index.insert(value);
+                FileManager.storeIndexInserts(tableName, colName, index, Collections.singletonList(value));
             }
-            index.insert(value);
-            FileManager.storeTableIndex(tableName, colName, index);
+            FileManager.storeTableCounters(tableName, t);
+        } finally {
+            lock.unlock();
         }
-        FileManager.storeTable(tableName, t);
     }
 
+    // Writes every page, index delta and the table counters once per batch instead of once per row
+    public static void insertBatch(String tableName, Iterable<String[]> rows) {
+        Lock lock = lockFor(tableName).writeLock();
+        lock.lock();
+        try {
+            Table t = FileManager.loadTable(tableName);
+            if (t == null) {
+                throw new IllegalArgumentException("Table " + tableName + " does not exist");
+            }
+            ArrayList<String[]> batch = new ArrayList<>();
+            for (String[] record : rows) {
+                batch.add(record);
+            }
+            t.insertBatch(batch);
+
+            for (String colName : t.getIndexedColumns()) {
+                int colIndex = t.getColumnIndex(colName);
+                Index index = FileManager.loadIndex(tableName, colName);
+                if (index == null) {
+                    createIndex(tableName, colName, t.getIndexKind(colName));
+                    continue;
+                }
+                ArrayList<String> values = new ArrayList<>();
+                for (String[] record : batch) {
+                    index.insert(record[colIndex]);
+                    values.add(record[colIndex]);
+                }
+                FileManager.storeIndexInserts(tableName, colName, index, values);
+            }
+            FileManager.storeTableCounters(tableName, t);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Full scans hold the table lock only while taking their snapshot, so inserts are not
+    // blocked by a long scan and the scan sees the table as it was when it started
     public static ArrayList<String[]> select(String tableName) {
-        Table t = FileManager.loadTable(tableName);
-        ArrayList<String[]> res = t.select();
-        FileManager.storeTable(tableName, t);
+        Table.Snapshot snapshot = snapshot(tableName);
+        ArrayList<String[]> res = snapshot.getTable().select(snapshot);
         return res;
     }
 
     public static ArrayList<String[]> select(String tableName, int pageNumber, int recordNumber) {
-        Table t = FileManager.loadTable(tableName);
-        ArrayList<String[]> res = t.select(pageNumber, recordNumber);
-        FileManager.storeTable(tableName, t);
-        return res;
+        Lock lock = lockFor(tableName).readLock();
+        lock.lock();
+        try {
+            Table t = FileManager.loadTable(tableName);
+            if (t == null) {
+                throw new IllegalArgumentException("Table " + tableName + " does not exist");
+            }
+            ArrayList<String[]> res = t.select(pageNumber, recordNumber);
+            return res;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public static ArrayList<String[]> select(String tableName, String[] cols, String[] vals) {
-        Table t = FileManager.loadTable(tableName);
-        ArrayList<String[]> res = t.select(cols, vals);
-        FileManager.storeTable(tableName, t);
+        Table.Snapshot snapshot = snapshot(tableName);
+        ArrayList<String[]> res = snapshot.getTable().select(snapshot, cols, vals);
         return res;
     }
 
-    public static String getFullTrace(String tableName) {
-        Table t = FileManager.loadTable(tableName);
-        String res = t.getFullTrace();
-        return res;
+    // Projection pushdown: rows hold only the given columns, in that order, and the pages never
+    // decode the other fields
+    public static ArrayList<String[]> selectColumns(String tableName, String[] columns) {
+        Table.Snapshot snapshot = snapshot(tableName);
+        Table t = snapshot.getTable();
+        return t.select(snapshot, projection(t, columns));
     }
 
-    public static String getLastTrace(String tableName) {
-        Table t = FileManager.loadTable(tableName);
-        String res = t.getLastTrace();
+    public static ArrayList<String[]> selectColumns(String tableName, String[] columns, String[] cols, String[] vals) {
+        Table.Snapshot snapshot = snapshot(tableName);
+        Table t = snapshot.getTable();
+        return t.select(snapshot, cols, vals, projection(t, columns));
+    }
+
+    private static int[] projection(Table t, String[] columns) {
+        int[] res = new int[columns.length];
+        for (int j = 0; j < columns.length; j++) {
+            res[j] = t.getColumnIndex(columns[j]);
+            if (res[j] == -1) {
+                throw new IllegalArgumentException("Column " + columns[j] + " does not exist");
+            }
+        }
         return res;
     }
 
-    public static void createBitMapIndex(String tableName, String columnName) {
-        Table t = FileManager.loadTable(tableName);
-        if (t == null) {
-            throw new IllegalArgumentException("Table " + tableName + " does not exist");
+    private static int[] withConditionColumns(Table t, int[] projection, String[] cols) {
+        ArrayList<Integer> res = new ArrayList<>();
+        for (int colIndex : projection) {
+            res.add(colIndex);
         }
-        long startTime = System.currentTimeMillis();
-        int colIndex = t.getColumnIndex(columnName);
-        if (colIndex == -1) {
-            throw new IllegalArgumentException("Column " + columnName + " does not exist");
+        for (String col : cols) {
+            int colIndex = t.getColumnIndex(col);
+            if (colIndex != -1 && !res.contains(colIndex)) {
+                res.add(colIndex);
+            }
         }
-        ArrayList<String> values = new ArrayList<>();
-        for (int i = 0; i < t.getPageCount(); i++) {
-            Page page = FileManager.loadTablePage(tableName, i);
-            if (page != null) {
-                ArrayList<String[]> pageRecords = page.select();
-                for (String[] record : pageRecords) {
-                    values.add(record[colIndex]);
-                }
+        return res.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int position(int[] columns, int colIndex) {
+        for (int j = 0; j < columns.length; j++) {
+            if (columns[j] == colIndex) {
+                return j;
             }
         }
-        BitMapIndex index = new BitMapIndex();
-        index.initialize(values.toArray(new String[0]));
-        FileManager.storeTableIndex(tableName, columnName, index);
-        t.addIndexedColumn(columnName);
-        long stopTime = System.currentTimeMillis();
-        t.getTrace().add("Index created for column: " + columnName + ", execution time (mil):" + (stopTime - startTime));
-        FileManager.storeTable(tableName, t);
+        return -1;
     }
 
-    public static String getValueBits(String tableName, String colName, String value) {
-        Table t = FileManager.loadTable(tableName);
-        if (t == null) {
-            throw new IllegalArgumentException("Table " + tableName + " does not exist");
+    // The table is looked up under the same read lock as its counters, so a createTable running
+    // concurrently cannot pair the replaced table object with the new table's pages
+    private static Table.Snapshot snapshot(String tableName) {
+        Lock lock = lockFor(tableName).readLock();
+        lock.lock();
+        try {
+            Table t = FileManager.loadTable(tableName);
+            if (t == null) {
+                throw new IllegalArgumentException("Table " + tableName + " does not exist");
+            }
+            return t.snapshot();
+        } finally {
+            lock.unlock();
         }
-        BitMapIndex index = FileManager.loadTableIndex(tableName, colName);
-        if (index == null) {
-            throw new IllegalArgumentException("Index does not exist for column " + colName);
+    }
+
+    // Number of worker threads used by full-table page scans; 1 scans on the calling thread
+    public static void setScanParallelism(int degree) {
+        ParallelScan.setParallelism(degree);
+    }
+
+    // Writes the full image of every resident table; the hot paths above only persist counters
+    public static void checkpoint() {
+        for (String tableName : FileManager.catalog.keySet()) {
+            Lock lock = lockFor(tableName).writeLock();
+            lock.lock();
+            try {
+                FileManager.checkpoint(tableName);
+            } finally {
+                lock.unlock();
+            }
         }
-        String bitstream = index.getBitstream(value);
-        if (bitstream == null) {
-            int totalRecords = 0;
-            for (int i = 0; i < t.getPageCount(); i++) {
-                Page page = FileManager.loadTablePage(tableName, i);
-                if (page != null) {
-                    totalRecords += page.select().size();
+    }
+
+    static ReentrantReadWriteLock lockFor(String tableName) {
+        return tableLocks.computeIfAbsent(tableName, k -> new ReentrantReadWriteLock());
+    }
+
+    // Lazily pulls pages as the cursor advances; close it (or the stream from cursor.stream()) when done
+    public static Cursor scan(String tableName) {
+        return scan(tableName, new String[0], new String[0], -1);
+    }
+
+    public static Cursor scan(String tableName, int limit) {
+        return scan(tableName, new String[0], new String[0], limit);
+    }
+
+    public static Cursor scan(String tableName, String[] cols, String[] vals, int limit) {
+        Table.Snapshot snapshot = snapshot(tableName);
+        return snapshot.getTable().scan(snapshot, cols, vals, limit);
+    }
+
+    public static String getFullTrace(String tableName) {
+        Lock lock = lockFor(tableName).readLock();
+        lock.lock();
+        try {
+            Table t = FileManager.loadTable(tableName);
+            String res = t.getFullTrace();
+            return res;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static String getLastTrace(String tableName) {
+        Lock lock = lockFor(tableName).readLock();
+        lock.lock();
+        try {
+            Table t = FileManager.loadTable(tableName);
+            String res = t.getLastTrace();
+            return res;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The structured events still held in memory, oldest first; see TraceEvent.describe
+    public static ArrayList<TraceEvent> getTraceEvents(String tableName) {
+        Lock lock = lockFor(tableName).readLock();
+        lock.lock();
+        try {
+            Table t = FileManager.loadTable(tableName);
+            if (t == null) {
+                throw new IllegalArgumentException("Table " + tableName + " does not exist");
+            }
+            return t.getTraceEvents();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static void createBitMapIndex(String tableName, String columnName) {
+        createIndex(tableName, columnName, "bitmap");
+    }
+
+    // Value -> row id index for unique or high-cardinality columns
+    public static void createHashIndex(String tableName, String columnName) {
+        createIndex(tableName, columnName, "hash");
+    }
+
+    // Ordered index for range and prefix conditions in selectWhere/selectOrdered
+    public static void createBTreeIndex(String tableName, String columnName) {
+        createIndex(tableName, columnName, "btree");
+    }
+
+    // Chooses a hash index when the column is mostly distinct values, a bitmap index otherwise
+    public static void createIndex(String tableName, String columnName) {
+        createIndex(tableName, columnName, null);
+    }
+
+    // kind is "bitmap", "hash" or "btree"; null picks between bitmap and hash from the data
+    private static void createIndex(String tableName, String columnName, String kind) {
+        Lock lock = lockFor(tableName).writeLock();
+        lock.lock();
+        try {
+            Table t = FileManager.loadTable(tableName);
+            if (t == null) {
+                throw new IllegalArgumentException("Table " + tableName + " does not exist");
+            }
+            long startTime = System.nanoTime();
+            int colIndex = t.getColumnIndex(columnName);
+            if (colIndex == -1) {
+                throw new IllegalArgumentException("Column " + columnName + " does not exist");
+            }
+            ArrayList<String> values = new ArrayList<>();
+            for (ArrayList<String> pageValues : ParallelScan.mapPages(tableName, t.getPageCount(), page -> {
+                ArrayList<String> column = new ArrayList<>(page.size());
+                for (int slot = 0; slot < page.size(); slot++) {
+                    column.add(page.getField(slot, colIndex));
+                }
+                return column;
+            })) {
+                if (pageValues != null) {
+                    values.addAll(pageValues);
                 }
             }
-            StringBuilder zeroStream = new StringBuilder();
-            for (int i = 0; i < totalRecords; i++) {
-                zeroStream.append('0');
+            if (kind == null) {
+                boolean distinct = !values.isEmpty()
+                        && new HashSet<>(values).size() >= hashIndexCardinalityRatio * values.size();
+                kind = distinct ? "hash" : "bitmap";
+            }
+            Index index = newIndex(kind, tableName, columnName);
+            index.initialize(values.toArray(new String[0]));
+            FileManager.storeTableIndex(tableName, columnName, index);
+            t.addIndexedColumn(columnName, kind);
+            long stopTime = System.nanoTime();
+            String label = kind.equals("hash") ? "Hash index" : kind.equals("btree") ? "B+tree index" : "Index";
+            t.addTrace(new TraceEvent(TraceEvent.Type.CREATE_INDEX, label + " created for column: "
+                    + columnName, stopTime - startTime, t.getPageCount(), -1));
+            FileManager.storeTable(tableName, t);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Rebuilds the table's statistics from its pages: row count, distinct counts, most frequent
+    // values and per-page min/max. Inserts keep them current from then on.
+    public static TableStatistics analyzeTable(String tableName) {
+        Lock lock = lockFor(tableName).writeLock();
+        lock.lock();
+        try {
+            Table t = FileManager.loadTable(tableName);
+            if (t == null) {
+                throw new IllegalArgumentException("Table " + tableName + " does not exist");
+            }
+            long startTime = System.nanoTime();
+            TableStatistics stats = new TableStatistics(t.getColumnNames());
+            ArrayList<ArrayList<String[]>> pages = ParallelScan.mapPages(tableName, t.getPageCount(), Page::select);
+            for (int i = 0; i < pages.size(); i++) {
+                ArrayList<String[]> records = pages.get(i);
+                for (int slot = 0; records != null && slot < records.size(); slot++) {
+                    stats.add(i, records.get(slot), slot == 0);
+                }
+            }
+            stats.reconcile(t.getRecordsCount());
+            t.setStatistics(stats);
+            t.addTrace(new TraceEvent(TraceEvent.Type.ANALYZE, "Analyzed table: rows:" + stats.getRowCount()
+                    + ", pages:" + t.getPageCount(), System.nanoTime() - startTime, t.getPageCount(), -1));
+            FileManager.storeTable(tableName, t);
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static TableStatistics getStatistics(String tableName) {
+        Lock lock = lockFor(tableName).readLock();
+        lock.lock();
+        try {
+            Table t = FileManager.loadTable(tableName);
+            if (t == null) {
+                throw new IllegalArgumentException("Table " + tableName + " does not exist");
             }
-            return zeroStream.toString();
+            return t.getStatistics();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static String getValueBits(String tableName, String colName, String value) {
+        Lock lock = lockFor(tableName).readLock();
+        lock.lock();
+        try {
+            Table t = FileManager.loadTable(tableName);
+            if (t == null) {
+                throw new IllegalArgumentException("Table " + tableName + " does not exist");
+            }
+            Index index = FileManager.loadIndex(tableName, colName);
+            if (index == null) {
+                throw new IllegalArgumentException("Index does not exist for column " + colName);
+            }
+            String bitstream = index.getBitstream(value);
+            if (bitstream == null) {
+                // The index covers every row, so it already knows how long the stream is
+                StringBuilder zeroStream = new StringBuilder();
+                for (int i = 0; i < index.getRowCount(); i++) {
+                    zeroStream.append('0');
+                }
+                return zeroStream.toString();
+            }
+            return bitstream;
+        } finally {
+            lock.unlock();
         }
-        return bitstream;
     }
 
     public static ArrayList<String[]> selectIndex(String tableName, String[] cols, String[] vals) {
-        Table t = FileManager.loadTable(tableName);
-        if (t == null) {
-            throw new IllegalArgumentException("Table " + tableName + " does not exist");
+        String[][] valueLists = new String[vals.length][];
+        for (int i = 0; i < vals.length; i++) {
+            valueLists[i] = new String[] { vals[i] };
         }
-        long startTime = System.currentTimeMillis();
-        ArrayList<String[]> result = new ArrayList<>();
-        ArrayList<Integer> indexedColsIndices = new ArrayList<>();
-        ArrayList<Integer> nonIndexedColsIndices = new ArrayList<>();
-        ArrayList<String> indexedColsNames = new ArrayList<>(); // For trace
-        ArrayList<String> nonIndexedColsNames = new ArrayList<>(); // For trace
+        return selectIndex(tableName, cols, valueLists, new boolean[cols.length],
+                Arrays.toString(cols) + "->" + Arrays.toString(vals), null);
+    }
 
-        
+    // Each column matches when its value is one of vals[i] (an IN-list), or is none of them when negated[i] is set
+    public static ArrayList<String[]> selectIndex(String tableName, String[] cols, String[][] vals, boolean[] negated) {
+        StringBuilder condition = new StringBuilder();
         for (int i = 0; i < cols.length; i++) {
-            if (t.getIndexedColumns().contains(cols[i])) {
-                indexedColsIndices.add(i);
-                indexedColsNames.add(cols[i]);
-            } else {
-                nonIndexedColsIndices.add(i);
-                nonIndexedColsNames.add(cols[i]);
+            if (i > 0) {
+                condition.append(", ");
             }
+            condition.append(cols[i]).append(negated[i] ? " NOT IN " : " IN ").append(Arrays.toString(vals[i]));
         }
+        return selectIndex(tableName, cols, vals, negated, "[" + condition + "]", null);
+    }
 
-        
-        Collections.sort(indexedColsNames);
-        Collections.sort(nonIndexedColsNames);
+    // selectIndex returning only the given columns, in that order. Rows are fetched with just those
+    // columns plus the ones the conditions still have to check, so other fields are never decoded.
+    public static ArrayList<String[]> selectIndexColumns(String tableName, String[] columns, String[] cols, String[] vals) {
+        String[][] valueLists = new String[vals.length][];
+        for (int i = 0; i < vals.length; i++) {
+            valueLists[i] = new String[] { vals[i] };
+        }
+        return selectIndex(tableName, cols, valueLists, new boolean[cols.length],
+                Arrays.toString(cols) + "->" + Arrays.toString(vals), columns);
+    }
 
-        int indexedSelectionCount = 0;
-        if (nonIndexedColsIndices.isEmpty()) {
-            
-            String combinedBitstream = null;
-            for (int i : indexedColsIndices) {
-                String bitstream = getValueBits(tableName, cols[i], vals[i]);
-                if (combinedBitstream == null) {
-                    combinedBitstream = bitstream;
+    private static ArrayList<String[]> selectIndex(String tableName, String[] cols, String[][] vals,
+                                                   boolean[] negated, String condition, String[] columns) {
+        Lock lock = lockFor(tableName).readLock();
+        lock.lock();
+        try {
+            Table t = FileManager.loadTable(tableName);
+            if (t == null) {
+                throw new IllegalArgumentException("Table " + tableName + " does not exist");
+            }
+            int[] projection = columns == null ? null : projection(t, columns);
+            // Columns each fetched row holds: the projection, then condition columns outside it
+            int[] fetch = projection == null ? null : withConditionColumns(t, projection, cols);
+            long startTime = System.nanoTime();
+            ArrayList<String[]> result = new ArrayList<>();
+            ArrayList<Integer> indexedColsIndices = new ArrayList<>();
+            ArrayList<Integer> nonIndexedColsIndices = new ArrayList<>();
+            ArrayList<String> indexedColsNames = new ArrayList<>(); // For trace
+            ArrayList<String> nonIndexedColsNames = new ArrayList<>(); // For trace
+
+        
+            for (int i = 0; i < cols.length; i++) {
+                if (t.getIndexedColumns().contains(cols[i])) {
+                    indexedColsIndices.add(i);
+                    indexedColsNames.add(cols[i]);
                 } else {
-                    combinedBitstream = andBitstreams(combinedBitstream, bitstream);
+                    nonIndexedColsIndices.add(i);
+                    nonIndexedColsNames.add(cols[i]);
                 }
             }
-            result = getRecordsFromBitstream(t, combinedBitstream);
-            indexedSelectionCount = result.size();
-        } else if (indexedColsIndices.size() == 1) {
+
+        
+            Collections.sort(indexedColsNames);
+            Collections.sort(nonIndexedColsNames);
+
+            int indexedSelectionCount = 0;
+            int pagesTouched = t.getPageCount();
+            StringBuilder plan = new StringBuilder();
+            if (!indexedColsIndices.isEmpty()) {
+                // Estimate each column's matches from the index popcounts, assuming independent columns
+                HashMap<Integer, Integer> estimates = new HashMap<>();
+                double selectivity = 1;
+                for (int i : indexedColsIndices) {
+                    Index index = FileManager.loadIndex(tableName, cols[i]);
+                    if (index == null) {
+                        throw new IllegalArgumentException("Index does not exist for column " + cols[i]);
+                    }
+                    int estimate = estimateRows(index, vals[i], negated[i]);
+                    estimates.put(i, estimate);
+                    selectivity *= index.getRowCount() == 0 ? 0 : (double) estimate / index.getRowCount();
+                }
+                ArrayList<Integer> order = new ArrayList<>(indexedColsIndices);
+                order.sort(Comparator.comparingInt(estimates::get));
+
+                if (selectivity > indexScanSelectivity) {
+                    plan.append(String.format("Sequential scan, estimated selectivity %.2f", selectivity));
+                    ArrayList<String[]> all = new ArrayList<>();
+                    for (ArrayList<String[]> records : ParallelScan.mapPages(tableName, t.getPageCount(),
+                            p -> fetch == null ? p.select() : p.select(fetch))) {
+                        if (records != null) {
+                            all.addAll(records);
+                        }
+                    }
+                    ArrayList<String[]> candidates = filterNonIndexed(t, all, cols, vals, negated, order, fetch);
+                    indexedSelectionCount = candidates.size();
+                    result = filterNonIndexed(t, candidates, cols, vals, negated, nonIndexedColsIndices, fetch);
+                } else {
+                    plan.append(String.format("Index intersection, estimated selectivity %.2f:", selectivity));
+                    Bitmap combined = null;
+                    for (int i : order) {
+                        if (combined != null && combined.isEmpty()) {
+                            plan.append(" stopped early on empty result");
+                            break;
+                        }
+                        plan.append(' ').append(cols[i]).append('(').append(estimates.get(i)).append(')');
+                        Bitmap bitmap = getValueBitmap(t, cols[i], vals[i], negated[i]);
+                        if (combined == null) {
+                            combined = bitmap;
+                        } else {
+                            combined.andInPlace(bitmap);
+                        }
+                    }
+                    ArrayList<String[]> candidates = getRecordsFromBitmap(t, combined, fetch);
+                    indexedSelectionCount = candidates.size();
+                    pagesTouched = countPages(combined);
+                    result = filterNonIndexed(t, candidates, cols, vals, negated, nonIndexedColsIndices, fetch);
+                }
+                if (!nonIndexedColsIndices.isEmpty()) {
+                    plan.append(", then filter ").append(nonIndexedColsNames);
+                }
+            } else if (isConjunctiveEquality(vals, negated)) {
            
-            int i = indexedColsIndices.get(0);
-            String bitstream = getValueBits(tableName, cols[i], vals[i]);
-            ArrayList<String[]> candidates = getRecordsFromBitstream(t, bitstream);
-            indexedSelectionCount = candidates.size();
-            result = filterNonIndexed(t, candidates, cols, vals, nonIndexedColsIndices);
-        } else if (!indexedColsIndices.isEmpty()) {
+                String[] equalityVals = new String[vals.length];
+                for (int i = 0; i < vals.length; i++) {
+                    equalityVals[i] = vals[i][0];
+                }
+                result = t.select(t.snapshot(), cols, equalityVals, projection);
+                indexedSelectionCount = result.size();
+            } else {
             
-            String combinedBitstream = null;
-            for (int i : indexedColsIndices) {
-                String bitstream = getValueBits(tableName, cols[i], vals[i]);
-                if (combinedBitstream == null) {
-                    combinedBitstream = bitstream;
-                } else {
-                    combinedBitstream = andBitstreams(combinedBitstream, bitstream);
+                result = filterNonIndexed(t, t.select(t.snapshot(), fetch), cols, vals, negated,
+                        nonIndexedColsIndices, fetch);
+                indexedSelectionCount = result.size();
+            }
+            if (projection != null && fetch.length > projection.length) {
+                for (int r = 0; r < result.size(); r++) {
+                    if (result.get(r).length > projection.length) {
+                        result.set(r, Arrays.copyOf(result.get(r), projection.length));
+                    }
                 }
             }
-            ArrayList<String[]> candidates = getRecordsFromBitstream(t, combinedBitstream);
-            indexedSelectionCount = candidates.size();
-            result = filterNonIndexed(t, candidates, cols, vals, nonIndexedColsIndices);
-        } else {
-           
-            result = t.select(cols, vals);
-            indexedSelectionCount = result.size();
-        }
 
       
-        StringBuilder traceBuilder = new StringBuilder();
-        traceBuilder.append("Select index condition:")
-                    .append(Arrays.toString(cols))
-                    .append("->")
-                    .append(Arrays.toString(vals))
-                    .append(", ");
+            StringBuilder traceBuilder = new StringBuilder();
+            traceBuilder.append("Select index condition:")
+                        .append(condition)
+                        .append(", ");
 
         
-        if (!indexedColsNames.isEmpty()) {
-            traceBuilder.append("Indexed columns: ")
-                        .append(indexedColsNames)
-                        .append(", Indexed selection count: ")
-                        .append(indexedSelectionCount)
-                        .append(", ");
-        } else {
-            traceBuilder.append("Indexed selection count: ")
-                        .append(indexedSelectionCount)
-                        .append(", ");
-        }
+            if (!indexedColsNames.isEmpty()) {
+                traceBuilder.append("Indexed columns: ")
+                            .append(indexedColsNames)
+                            .append(", Indexed selection count: ")
+                            .append(indexedSelectionCount)
+                            .append(", ");
+            } else {
+                traceBuilder.append("Indexed selection count: ")
+                            .append(indexedSelectionCount)
+                            .append(", ");
+            }
 
         
-        if (!nonIndexedColsNames.isEmpty()) {
-            traceBuilder.append("Non Indexed: ")
-                        .append(nonIndexedColsNames)
-                        .append(", ");
-        }
+            if (!nonIndexedColsNames.isEmpty()) {
+                traceBuilder.append("Non Indexed: ")
+                            .append(nonIndexedColsNames)
+                            .append(", ");
+            }
 
         
-        traceBuilder.append("Final count: ")
-                    .append(result.size())
-                    .append(", execution time (mil):")
-                    .append(System.currentTimeMillis() - startTime);
+            traceBuilder.append("Final count: ")
+                        .append(result.size());
 
-        t.getTrace().add(traceBuilder.toString());
-        FileManager.storeTable(tableName, t);
-        return result;
+            if (plan.length() == 0) {
+                plan.append("Sequential scan, no indexed columns");
+            }
+            t.addTrace(new TraceEvent(TraceEvent.Type.SELECT_INDEX, traceBuilder.toString(),
+                    System.nanoTime() - startTime, pagesTouched, result.size(), plan.toString()));
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Access path chosen by the table's most recent select that recorded one
+    public static String getLastPlan(String tableName) {
+        Lock lock = lockFor(tableName).readLock();
+        lock.lock();
+        try {
+            Table t = FileManager.loadTable(tableName);
+            if (t == null) {
+                throw new IllegalArgumentException("Table " + tableName + " does not exist");
+            }
+            ArrayList<TraceEvent> events = t.getTraceEvents();
+            for (int i = events.size() - 1; i >= 0; i--) {
+                if (events.get(i).getPlan() != null) {
+                    return events.get(i).getPlan();
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int estimateRows(Index index, String[] values, boolean negated) {
+        int matches = 0;
+        for (String value : new HashSet<>(Arrays.asList(values))) {
+            matches += index.cardinality(value);
+        }
+        return negated ? index.getRowCount() - matches : matches;
+    }
+
+    // Conjunction of single-column conditions, including ranges and prefixes. Conditions on a B+tree
+    // column, and equality/IN conditions on any indexed column, are answered from the index and
+    // intersected; the rest filter the candidate rows, or a full scan when nothing is indexed.
+    public static ArrayList<String[]> selectWhere(String tableName, Condition... conditions) {
+        Lock lock = lockFor(tableName).readLock();
+        lock.lock();
+        try {
+            Table t = FileManager.loadTable(tableName);
+            if (t == null) {
+                throw new IllegalArgumentException("Table " + tableName + " does not exist");
+            }
+            long startTime = System.nanoTime();
+            ArrayList<String> indexPaths = new ArrayList<>();
+            ArrayList<Condition> residual = new ArrayList<>();
+            Bitmap combined = indexedConditions(t, conditions, indexPaths, residual);
+            ArrayList<String[]> result = new ArrayList<>();
+            int pagesTouched = t.getPageCount();
+            if (combined != null) {
+                pagesTouched = countPages(combined);
+                for (String[] record : getRecordsFromBitmap(t, combined)) {
+                    if (matchesAll(t, record, residual)) {
+                        result.add(record);
+                    }
+                }
+            } else {
+                int[] colIndices = columnIndices(t, residual);
+                for (ArrayList<String[]> pageRecords : ParallelScan.mapPages(tableName, t.getPageCount(), page -> {
+                    ArrayList<String[]> matched = new ArrayList<>();
+                    for (int slot = 0; slot < page.size(); slot++) {
+                        boolean matches = true;
+                        for (int i = 0; i < colIndices.length && matches; i++) {
+                            matches = residual.get(i).test(page.getField(slot, colIndices[i]));
+                        }
+                        if (matches) {
+                            matched.add(page.getRecord(slot));
+                        }
+                    }
+                    return matched;
+                })) {
+                    if (pageRecords != null) {
+                        result.addAll(pageRecords);
+                    }
+                }
+            }
+            t.addTrace(new TraceEvent(TraceEvent.Type.SELECT_RANGE, "Select where:" + Arrays.toString(conditions)
+                    + ", Index paths:" + indexPaths + ", records:" + result.size(), System.nanoTime() - startTime,
+                    pagesTouched, result.size()));
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Rows matching every condition, sorted by orderBy (nulls first, numbers by value). With a B+tree
+    // on orderBy the rows come straight from its leaf chain, otherwise they are sorted in memory.
+    public static ArrayList<String[]> selectOrdered(String tableName, String orderBy, Condition... conditions) {
+        Lock lock = lockFor(tableName).readLock();
+        lock.lock();
+        try {
+            Table t = FileManager.loadTable(tableName);
+            if (t == null) {
+                throw new IllegalArgumentException("Table " + tableName + " does not exist");
+            }
+            int orderIndex = t.getColumnIndex(orderBy);
+            if (orderIndex == -1) {
+                throw new IllegalArgumentException("Column " + orderBy + " does not exist");
+            }
+            Index index = t.getIndexedColumns().contains(orderBy) ? FileManager.loadIndex(tableName, orderBy) : null;
+            if (!(index instanceof BTreeIndex)) {
+                ArrayList<String[]> result = selectWhere(tableName, conditions);
+                result.sort((a, b) -> Condition.compare(a[orderIndex], b[orderIndex]));
+                return result;
+            }
+            long startTime = System.nanoTime();
+            // A condition on orderBy bounds the leaf walk, so only its range is read; further
+            // conditions on orderBy filter the rows of that range, the rest are intersected as usual
+            Condition bound = null;
+            ArrayList<Condition> others = new ArrayList<>();
+            ArrayList<Condition> residual = new ArrayList<>();
+            for (Condition cond : conditions) {
+                if (!cond.getColumn().equals(orderBy)) {
+                    others.add(cond);
+                } else if (bound == null) {
+                    bound = cond;
+                } else {
+                    residual.add(cond);
+                }
+            }
+            ArrayList<String> indexPaths = new ArrayList<>();
+            Bitmap combined = indexedConditions(t, others.toArray(new Condition[0]), indexPaths, residual);
+            ArrayList<String[]> result = new ArrayList<>();
+            HashSet<Integer> pages = new HashSet<>();
+            ((BTreeIndex) index).scan(bound, row -> {
+                if (combined == null || combined.get(row)) {
+                    pages.add(row / dataPageSize);
+                    String[] record = getRecord(t, row);
+                    if (record != null && matchesAll(t, record, residual)) {
+                        result.add(record);
+                    }
+                }
+            });
+            indexPaths.add(orderBy + (bound != null ? " order range" : " order"));
+            t.addTrace(new TraceEvent(TraceEvent.Type.SELECT_RANGE, "Select where:" + Arrays.toString(conditions)
+                    + " order by " + orderBy + ", Index paths:" + indexPaths + ", records:" + result.size(),
+                    System.nanoTime() - startTime, pages.size(), result.size()));
+            return result;
+        } finally {
+            lock.unlock();
+        }
     }
+
+    // COUNT(*) of the rows where every cols[i] equals vals[i]. Indexed columns are answered from the
+    // indexes alone, a popcount for one column and a bitmap intersection for several; the remaining
+    // conditions are checked only on the pages holding candidate rows. Without an indexed column
+    // the pages are streamed and counted. No row is materialized on any path.
+    public static int count(String tableName, String[] cols, String[] vals) {
+        Lock lock = lockFor(tableName).readLock();
+        lock.lock();
+        try {
+            Table t = FileManager.loadTable(tableName);
+            if (t == null) {
+                throw new IllegalArgumentException("Table " + tableName + " does not exist");
+            }
+            long startTime = System.nanoTime();
+            ArrayList<Integer> indexed = new ArrayList<>();
+            ArrayList<String> residualCols = new ArrayList<>();
+            ArrayList<String> residualVals = new ArrayList<>();
+            for (int i = 0; i < cols.length; i++) {
+                if (t.getColumnIndex(cols[i]) == -1) {
+                    throw new IllegalArgumentException("Column " + cols[i] + " does not exist");
+                }
+                if (t.getIndexedColumns().contains(cols[i])) {
+                    indexed.add(i);
+                } else {
+                    residualCols.add(cols[i]);
+                    residualVals.add(vals[i]);
+                }
+            }
+            int res;
+            int pagesTouched = 0;
+            StringBuilder plan = new StringBuilder();
+            if (indexed.isEmpty()) {
+                String[] cond = t.fixCond(cols, vals);
+                for (int p = 0; p < t.getPageCount(); p++) {
+                    if (t.mayContain(p, cond)) {
+                        pagesTouched++;
+                    }
+                }
+                res = t.count(t.snapshot(), cols, vals);
+                plan.append("Streaming count");
+            } else {
+                HashMap<Integer, Integer> cardinalities = new HashMap<>();
+                for (int i : indexed) {
+                    Index index = FileManager.loadIndex(tableName, cols[i]);
+                    if (index == null) {
+                        throw new IllegalArgumentException("Index does not exist for column " + cols[i]);
+                    }
+                    cardinalities.put(i, index.cardinality(vals[i]));
+                }
+                indexed.sort(Comparator.comparingInt(cardinalities::get));
+                int first = indexed.get(0);
+                Bitmap combined = null;
+                if (indexed.size() == 1 || cardinalities.get(first) == 0) {
+                    res = cardinalities.get(first);
+                    plan.append("Index popcount: ").append(cols[first]).append('(').append(res).append(')');
+                    if (!residualCols.isEmpty() && res > 0) {
+                        combined = FileManager.loadIndex(tableName, cols[first]).matching(vals[first]);
+                    }
+                } else {
+                    plan.append("Index intersection:");
+                    for (int i : indexed) {
+                        if (combined != null && combined.isEmpty()) {
+                            plan.append(" stopped early on empty result");
+                            break;
+                        }
+                        plan.append(' ').append(cols[i]).append('(').append(cardinalities.get(i)).append(')');
+                        Bitmap bitmap = FileManager.loadIndex(tableName, cols[i]).matching(vals[i]);
+                        if (combined == null) {
+                            combined = bitmap;
+                        } else {
+                            combined.andInPlace(bitmap);
+                        }
+                    }
+                    res = combined.cardinality();
+                }
+                if (!residualCols.isEmpty()) {
+                    plan.append(", then filter ").append(residualCols);
+                    if (res > 0) {
+                        pagesTouched = countPages(combined);
+                        res = countFromBitmap(t, combined, t.fixCond(residualCols.toArray(new String[0]),
+                                residualVals.toArray(new String[0])));
+                    }
+                }
+            }
+            t.addTrace(new TraceEvent(TraceEvent.Type.AGGREGATE, "Count condition:" + Arrays.toString(cols) + "->"
+                    + Arrays.toString(vals) + ", count:" + res, System.nanoTime() - startTime, pagesTouched, 1,
+                    plan.toString()));
+            return res;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Rows per distinct value of a column (GROUP BY col COUNT(*)), ordered like Condition.compare.
+    // An indexed column is answered from the index's per-value counts without reading any page.
+    public static Map<String, Integer> countByValue(String tableName, String columnName) {
+        Lock lock = lockFor(tableName).readLock();
+        lock.lock();
+        try {
+            Table t = FileManager.loadTable(tableName);
+            if (t == null) {
+                throw new IllegalArgumentException("Table " + tableName + " does not exist");
+            }
+            int colIndex = t.getColumnIndex(columnName);
+            if (colIndex == -1) {
+                throw new IllegalArgumentException("Column " + columnName + " does not exist");
+            }
+            long startTime = System.nanoTime();
+            Index index = t.getIndexedColumns().contains(columnName) ? FileManager.loadIndex(tableName, columnName) : null;
+            Map<String, Integer> res;
+            int pagesTouched = 0;
+            String plan;
+            if (index != null) {
+                res = new TreeMap<>(Condition::compare);
+                res.putAll(index.valueCounts());
+                plan = "Index value counts: " + columnName;
+            } else {
+                res = t.countByValue(t.snapshot(), colIndex);
+                pagesTouched = t.getPageCount();
+                plan = "Streaming count by value";
+            }
+            t.addTrace(new TraceEvent(TraceEvent.Type.AGGREGATE, "Count by value column:" + columnName
+                    + ", values:" + res.size(), System.nanoTime() - startTime, pagesTouched, res.size(), plan));
+            return res;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Intersects the index answers for every condition an index can serve and returns null when
+    // none can; conditions left for row filtering are added to residual
+    private static Bitmap indexedConditions(Table t, Condition[] conditions, ArrayList<String> indexPaths,
+                                            ArrayList<Condition> residual) {
+        Bitmap combined = null;
+        for (Condition cond : conditions) {
+            if (t.getColumnIndex(cond.getColumn()) == -1) {
+                throw new IllegalArgumentException("Column " + cond.getColumn() + " does not exist");
+            }
+            Index index = t.getIndexedColumns().contains(cond.getColumn())
+                    ? FileManager.loadIndex(t.getName(), cond.getColumn()) : null;
+            Bitmap bitmap = null;
+            if (index instanceof BTreeIndex) {
+                bitmap = ((BTreeIndex) index).matching(cond);
+                indexPaths.add(cond.getColumn() + " btree");
+            } else if (index != null && cond.isEquality()) {
+                bitmap = index.matching(cond.getValues());
+                indexPaths.add(cond.getColumn() + (index instanceof HashIndex ? " hash" : " bitmap"));
+            } else {
+                residual.add(cond);
+                continue;
+            }
+            if (combined == null) {
+                combined = bitmap;
+            } else {
+                combined.andInPlace(bitmap);
+            }
+        }
+        return combined;
+    }
+
+    private static int[] columnIndices(Table t, ArrayList<Condition> conditions) {
+        int[] res = new int[conditions.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = t.getColumnIndex(conditions.get(i).getColumn());
+        }
+        return res;
+    }
+
+    private static boolean matchesAll(Table t, String[] record, ArrayList<Condition> conditions) {
+        for (Condition cond : conditions) {
+            if (!cond.test(record[t.getColumnIndex(cond.getColumn())])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Single row by row id, or null when its page is missing or short
+    private static String[] getRecord(Table t, int row) {
+        Page page = FileManager.loadTablePage(t.getName(), row / dataPageSize);
+        if (page == null || row % dataPageSize >= page.size()) {
+            return null;
+        }
+        return page.getRecord(row % dataPageSize);
+    }
+
+    private static Index newIndex(String kind, String tableName, String columnName) {
+        switch (kind) {
+            case "hash":
+                return new HashIndex();
+            case "btree":
+                return new BTreeIndex(tableName, columnName);
+            default:
+                return new BitMapIndex();
+        }
+    }
+
+    private static boolean isConjunctiveEquality(String[][] vals, boolean[] negated) {
+        for (int i = 0; i < vals.length; i++) {
+            if (negated[i] || vals[i].length != 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Pages whose checksum still matches are trusted as-is; only missing or changed pages are
+    // compared against their rows in the write-ahead log
     public static ArrayList<String[]> validateRecords(String tableName) {
-        Table t = FileManager.loadTable(tableName);
-        if (t == null) {
-            throw new IllegalArgumentException("Table " + tableName + " does not exist");
-        }
-        ArrayList<String[]> missing = new ArrayList<>();
-        ArrayList<String[]> currentRecords = t.select();
-        ArrayList<String[]> backupRecords = t.getBackupRecords();
-        for (String[] record : backupRecords) {
-            boolean found = false;
-            for (String[] current : currentRecords) {
-                if (Arrays.equals(record, current)) {
-                    found = true;
-                    break;
+        Lock lock = lockFor(tableName).writeLock();
+        lock.lock();
+        try {
+            Table t = FileManager.loadTable(tableName);
+            if (t == null) {
+                throw new IllegalArgumentException("Table " + tableName + " does not exist");
+            }
+            FileManager.discardTablePages(tableName);
+            ArrayList<String[]> missing = new ArrayList<>();
+            IdentityHashMap<String[], Long> missingRowIds = new IdentityHashMap<>();
+            HashMap<Integer, Page> suspectPages = new HashMap<>();
+            for (int i = 0; i < t.getPageCount(); i++) {
+                Page page = readIntactPage(tableName, i);
+                if (!t.isPageIntact(i, page)) {
+                    suspectPages.put(i, page);
                 }
             }
-            if (!found) {
-                missing.add(record);
+            if (!suspectPages.isEmpty() || t.getRecordsCount() > t.getPageCount() * dataPageSize) {
+                HashMap<Integer, HashMap<List<String>, Integer>> present = new HashMap<>();
+                for (WriteAheadLog.Entry entry : WriteAheadLog.forTable(tableName).readAll()) {
+                    int pageNum = (int) (entry.rowId / dataPageSize);
+                    if (pageNum < t.getPageCount() && !suspectPages.containsKey(pageNum)) {
+                        continue;
+                    }
+                    HashMap<List<String>, Integer> pageRecords = present.get(pageNum);
+                    if (pageRecords == null) {
+                        pageRecords = new HashMap<>();
+                        Page page = suspectPages.get(pageNum);
+                        if (page != null) {
+                            for (String[] record : page.select()) {
+                                pageRecords.merge(Arrays.asList(record), 1, Integer::sum);
+                            }
+                        }
+                        present.put(pageNum, pageRecords);
+                    }
+                    List<String> key = Arrays.asList(entry.record);
+                    Integer count = pageRecords.get(key);
+                    if (count != null && count > 0) {
+                        pageRecords.put(key, count - 1);
+                    } else {
+                        missing.add(entry.record);
+                        missingRowIds.put(entry.record, entry.rowId);
+                    }
+                }
             }
+            t.setMissingRowIds(missingRowIds);
+            t.addTrace(new TraceEvent(TraceEvent.Type.VALIDATE, "Validating records: " + missing.size() + " records missing."));
+            return missing;
+        } finally {
+            lock.unlock();
         }
-        t.getTrace().add("Validating records: " + missing.size() + " records missing.");
-        FileManager.storeTable(tableName, t);
-        return missing;
     }
 
+    // Rebuilds each affected page from its rows in the write-ahead log, in row id order
     public static void recoverRecords(String tableName, ArrayList<String[]> missing) {
-        Table t = FileManager.loadTable(tableName);
-        if (t == null) {
-            throw new IllegalArgumentException("Table " + tableName + " does not exist");
-        }
-        ArrayList<Integer> recoveredPages = new ArrayList<>();
-        for (String[] record : missing) {
-            int pageNum = t.getOriginalPageNum(record);
-            if (pageNum < 0) {
-               
-                continue; 
+        Lock lock = lockFor(tableName).writeLock();
+        lock.lock();
+        try {
+            Table t = FileManager.loadTable(tableName);
+            if (t == null) {
+                throw new IllegalArgumentException("Table " + tableName + " does not exist");
             }
-            Page page = FileManager.loadTablePage(tableName, pageNum);
-            if (page == null) {
-                page = new Page();
-                if (!recoveredPages.contains(pageNum)) {
-                    recoveredPages.add(pageNum);
+            FileManager.discardTablePages(tableName);
+            ArrayList<Integer> recoveredPages = new ArrayList<>();
+            TreeMap<Integer, Page> rebuiltPages = new TreeMap<>();
+            ArrayList<WriteAheadLog.Entry> log = missing.isEmpty() ? new ArrayList<>()
+                    : WriteAheadLog.forTable(tableName).readAll();
+            HashMap<List<String>, ArrayDeque<Long>> rowIdsByRecord = null;
+            long lastRowId = -1;
+            for (String[] record : missing) {
+                Long rowId = t.getMissingRowIds().get(record);
+                if (rowId == null) {
+                    // Not one of the arrays returned by validateRecords, so look it up by content
+                    if (rowIdsByRecord == null) {
+                        rowIdsByRecord = new HashMap<>();
+                        for (WriteAheadLog.Entry entry : log) {
+                            rowIdsByRecord.computeIfAbsent(Arrays.asList(entry.record), k -> new ArrayDeque<>())
+                                    .add(entry.rowId);
+                        }
+                    }
+                    ArrayDeque<Long> candidates = rowIdsByRecord.get(Arrays.asList(record));
+                    rowId = candidates != null ? candidates.poll() : null;
+                }
+                if (rowId == null) {
+               
+                    continue; 
                 }
+                rebuiltPages.put((int) (rowId / dataPageSize), t.newPage());
+                lastRowId = Math.max(lastRowId, rowId);
             }
-            if (page.insert(record)) {
-                FileManager.storeTablePage(tableName, pageNum, page);
+            for (WriteAheadLog.Entry entry : log) {
+                Page page = rebuiltPages.get((int) (entry.rowId / dataPageSize));
+                if (page != null) {
+                    page.insert(entry.record);
+                }
             }
+            for (Map.Entry<Integer, Page> rebuilt : rebuiltPages.entrySet()) {
+                int pageNum = rebuilt.getKey();
+                if (readIntactPage(tableName, pageNum) == null) {
+                    recoveredPages.add(pageNum);
+                }
+                FileManager.storeTablePage(tableName, pageNum, rebuilt.getValue());
+                t.updatePageChecksum(pageNum, rebuilt.getValue());
             
-            if (pageNum >= t.getPageCount()) {
-                t.setPageCount(pageNum + 1); 
-                t.getTrace().add("Updated pageCount to " + (pageNum + 1));
+                if (pageNum >= t.getPageCount()) {
+                    t.setPageCount(pageNum + 1); 
+                    t.addTrace("Updated pageCount to " + (pageNum + 1));
+                }
             }
-        }
+            if (lastRowId >= t.getRecordsCount()) {
+                t.setRecordsCount((int) lastRowId + 1);
+            }
+            t.setMissingRowIds(null);
         
-        for (String colName : t.getIndexedColumns()) {
-            int colIndex = t.getColumnIndex(colName);
-            if (colIndex == -1) {
+            for (String colName : t.getIndexedColumns()) {
+                int colIndex = t.getColumnIndex(colName);
+                if (colIndex == -1) {
                 
-                continue;
+                    continue;
+                }
+                ArrayList<String> values = new ArrayList<>();
+                ArrayList<String[]> allRecords = t.select();
+                for (String[] record : allRecords) {
+                    values.add(record[colIndex]);
+                }
+                Index index = newIndex(t.getIndexKind(colName), tableName, colName);
+                index.initialize(values.toArray(new String[0]));
+                FileManager.storeTableIndex(tableName, colName, index);
             }
-            ArrayList<String> values = new ArrayList<>();
-            ArrayList<String[]> allRecords = t.select();
-            for (String[] record : allRecords) {
-                values.add(record[colIndex]);
+            t.addTrace(new TraceEvent(TraceEvent.Type.RECOVER, "Recovering " + missing.size() + " records in pages: " + recoveredPages));
+            FileManager.storeTable(tableName, t);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A page file that is gone or can no longer be decoded counts as missing
+    private static Page readIntactPage(String tableName, int pageNumber) {
+        try {
+            Page page = FileManager.loadTablePage(tableName, pageNumber);
+            if (page != null) {
+                page.select();
             }
-            BitMapIndex index = new BitMapIndex();
-            index.initialize(values.toArray(new String[0]));
-            FileManager.storeTableIndex(tableName, colName, index);
+            return page;
+        } catch (RuntimeException e) {
+            FileManager.discardTablePages(tableName);
+            return null;
         }
-        t.getTrace().add("Recovering " + missing.size() + " records in pages: " + recoveredPages);
-        FileManager.storeTable(tableName, t);
     }
 
-    private static String andBitstreams(String b1, String b2) {
-        StringBuilder result = new StringBuilder();
-        for (int i = 0; i < Math.min(b1.length(), b2.length()); i++) {
-            result.append(b1.charAt(i) == '1' && b2.charAt(i) == '1' ? '1' : '0');
+    private static Bitmap getValueBitmap(Table t, String colName, String[] values, boolean negated) {
+        Index index = FileManager.loadIndex(t.getName(), colName);
+        if (index == null) {
+            throw new IllegalArgumentException("Index does not exist for column " + colName);
         }
-        return result.toString();
+        Bitmap bitmap = index.matching(values);
+        return negated ? bitmap.notInPlace() : bitmap;
     }
 
-    private static ArrayList<String[]> getRecordsFromBitstream(Table t, String bitstream) {
+    // Row r of the table lives in page r / dataPageSize at slot r % dataPageSize, so only pages
+    // holding a set bit are read; falls back to walking every page if a page is missing or short
+    private static ArrayList<String[]> getRecordsFromBitmap(Table t, Bitmap bitmap) {
+        return getRecordsFromBitmap(t, bitmap, null);
+    }
+
+    // With a projection only those columns of each row are decoded
+    private static ArrayList<String[]> getRecordsFromBitmap(Table t, Bitmap bitmap, int[] projection) {
+        ArrayList<String[]> result = new ArrayList<>();
+        Page page = null;
+        int pageNum = -1;
+        for (int row = bitmap.nextSetBit(0); row >= 0; row = bitmap.nextSetBit(row + 1)) {
+            if (row / dataPageSize != pageNum) {
+                pageNum = row / dataPageSize;
+                page = FileManager.loadTablePage(t.getName(), pageNum);
+                int expected = Math.min(dataPageSize, t.getRecordsCount() - pageNum * dataPageSize);
+                if (page == null || page.size() != expected) {
+                    return scanRecordsFromBitmap(t, bitmap, projection);
+                }
+            }
+            result.add(projection == null ? page.getRecord(row % dataPageSize) : page.getRecord(row % dataPageSize, projection));
+        }
+        return result;
+    }
+
+    // Rows of bitmap that also match cond, read field by field from the pages holding a set bit;
+    // walks every page instead if one is missing or short, like getRecordsFromBitmap
+    private static int countFromBitmap(Table t, Bitmap bitmap, String[] cond) {
+        int res = 0;
+        Page page = null;
+        int pageNum = -1;
+        for (int row = bitmap.nextSetBit(0); row >= 0; row = bitmap.nextSetBit(row + 1)) {
+            if (row / dataPageSize != pageNum) {
+                pageNum = row / dataPageSize;
+                page = FileManager.loadTablePage(t.getName(), pageNum);
+                int expected = Math.min(dataPageSize, t.getRecordsCount() - pageNum * dataPageSize);
+                if (page == null || page.size() != expected) {
+                    return scanCountFromBitmap(t, bitmap, cond);
+                }
+            }
+            if (page.matches(row % dataPageSize, cond)) {
+                res++;
+            }
+        }
+        return res;
+    }
+
+    private static int scanCountFromBitmap(Table t, Bitmap bitmap, String[] cond) {
+        int res = 0;
+        int globalRowIndex = 0;
+        for (int i = 0; i < t.getPageCount(); i++) {
+            Page page = FileManager.loadTablePage(t.getName(), i);
+            if (page != null) {
+                for (int slot = 0; slot < page.size(); slot++) {
+                    if (bitmap.get(globalRowIndex) && page.matches(slot, cond)) {
+                        res++;
+                    }
+                    globalRowIndex++;
+                }
+            }
+        }
+        return res;
+    }
+
+    private static int countPages(Bitmap bitmap) {
+        int pages = 0;
+        for (int row = bitmap.nextSetBit(0); row >= 0; row = bitmap.nextSetBit((row / dataPageSize + 1) * dataPageSize)) {
+            pages++;
+        }
+        return pages;
+    }
+
+    private static ArrayList<String[]> scanRecordsFromBitmap(Table t, Bitmap bitmap, int[] projection) {
         ArrayList<String[]> result = new ArrayList<>();
         int globalRowIndex = 0;
         for (int i = 0; i < t.getPageCount(); i++) {
             Page page = FileManager.loadTablePage(t.getName(), i);
             if (page != null) {
-                ArrayList<String[]> records = page.select();
+                ArrayList<String[]> records = projection == null ? page.select() : page.select(projection);
                 for (String[] record : records) {
-                    if (globalRowIndex < bitstream.length() && bitstream.charAt(globalRowIndex) == '1') {
+                    if (bitmap.get(globalRowIndex)) {
                         result.add(record);
                     }
                     globalRowIndex++;
@@ -327,14 +1201,19 @@ public class DBApp {
         return result;
     }
 
-    private static ArrayList<String[]> filterNonIndexed(Table t, ArrayList<String[]> candidates,
-                                                       String[] cols, String[] vals, ArrayList<Integer> nonIndexedCols) {
+    // fetch lists the table columns each candidate holds, in order, or is null for whole records
+    private static ArrayList<String[]> filterNonIndexed(Table t, ArrayList<String[]> candidates, String[] cols,
+                                                       String[][] vals, boolean[] negated, ArrayList<Integer> nonIndexedCols,
+                                                       int[] fetch) {
         ArrayList<String[]> result = new ArrayList<>();
         for (String[] record : candidates) {
             boolean matches = true;
             for (int i : nonIndexedCols) {
                 int colIndex = t.getColumnIndex(cols[i]);
-                if (!record[colIndex].equals(vals[i])) {
+                if (fetch != null) {
+                    colIndex = position(fetch, colIndex);
+                }
+                if (Arrays.asList(vals[i]).contains(record[colIndex]) == negated[i]) {
                     matches = false;
                     break;
                 }
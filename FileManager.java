@@ -1,13 +1,29 @@
 package DBMS;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 public class FileManager 
 {
@@ -16,8 +32,191 @@ public class FileManager
     static File directory = new File(path.substring(6,path.length()-17) + File.separator
     		+ "Tables" + File.separator);
 //	static File directory = new File( "Tables" + File.separator);
+	static BufferPool bufferPool = new BufferPool(256);
+	// When false every storeTablePage also writes the page file; when true dirty pages are
+	// written on eviction or flush()
+	static boolean writeBack = false;
+	// When true pages go to the table's memory-mapped segment files (see SegmentStore) instead of
+	// one <pageNumber>.db file each; pages too large for a segment slot still get their own file
+	static boolean segmentStorage = false;
+	// Resident tables; the full Table image is only written by storeTable/checkpoint, while
+	// storeTableCounters persists pageCount and recordsCount to a small side file
+	static ConcurrentHashMap<String, Table> catalog = new ConcurrentHashMap<>();
+	static ConcurrentHashMap<String, int[]> persistedCounters = new ConcurrentHashMap<>();
+	static ConcurrentHashMap<String, Integer> updatesSinceCheckpoint = new ConcurrentHashMap<>();
+	static int checkpointInterval = 1000;
 	
-    public static boolean storeTable(String tableName, Table t)
+	public static Table loadTable(String tableName)
+	{
+		Table res = catalog.get(tableName);
+		if (res != null)
+		{
+			return res;
+		}
+		// Concurrent first loads of a table must end up sharing one instance
+		synchronized (catalog)
+		{
+			res = catalog.get(tableName);
+			if (res != null)
+			{
+				return res;
+			}
+			res = readTable(tableName);
+			if (res != null)
+			{
+				int[] counters = readTableCounters(tableName);
+				if (counters != null)
+				{
+					res.setPageCount(counters[0]);
+					res.setRecordsCount(counters[1]);
+				}
+				catalog.put(tableName, res);
+				persistedCounters.put(tableName, new int[] { res.getPageCount(), res.getRecordsCount() });
+				if (res.migrateBackupRecords())
+				{
+					storeTable(tableName, res);
+				}
+			}
+		}
+		return res;
+	}
+	
+	public static boolean storeTable(String tableName, Table t)
+	{
+		catalog.put(tableName, t);
+		updatesSinceCheckpoint.put(tableName, 0);
+		if (writeTable(tableName, t) && writeTableCounters(tableName, t.getPageCount(), t.getRecordsCount()))
+		{
+			persistedCounters.put(tableName, new int[] { t.getPageCount(), t.getRecordsCount() });
+			return true;
+		}
+		return false;
+	}
+	
+	// Hot-path persistence: only rewrites the counters file when pageCount or recordsCount moved,
+	// and falls back to a full checkpoint every checkpointInterval updates
+	public static boolean storeTableCounters(String tableName, Table t)
+	{
+		catalog.put(tableName, t);
+		int[] persisted = persistedCounters.get(tableName);
+		if (persisted != null && persisted[0] == t.getPageCount() && persisted[1] == t.getRecordsCount())
+		{
+			return true;
+		}
+		int updates = updatesSinceCheckpoint.getOrDefault(tableName, 0) + 1;
+		if (updates >= checkpointInterval)
+		{
+			return storeTable(tableName, t);
+		}
+		updatesSinceCheckpoint.put(tableName, updates);
+		if (writeTableCounters(tableName, t.getPageCount(), t.getRecordsCount()))
+		{
+			persistedCounters.put(tableName, new int[] { t.getPageCount(), t.getRecordsCount() });
+			return true;
+		}
+		return false;
+	}
+	
+	// A table created under the name of an existing one must not inherit its logged rows, cached
+	// pages or indexes, whose row ids would collide with the new table's rows, nor any of its files:
+	// trace, counters, pages, segments, index images, delta tails and B+tree nodes
+	public static void dropTableState(String tableName)
+	{
+		WriteAheadLog.forTable(tableName).truncate();
+		bufferPool.drop(tableName);
+		SegmentStore.close(tableName);
+		synchronized (pendingIndexDeltas)
+		{
+			for (String key : indexCache.keySet().toArray(new String[0]))
+			{
+				if (key.startsWith(tableName + "/"))
+				{
+					indexCache.remove(key);
+					pendingIndexDeltas.remove(key);
+				}
+			}
+			File[] contents = new File(directory, tableName).listFiles();
+			if (contents != null)
+			{
+				for (File f : contents)
+				{
+					deleteDir(f);
+				}
+			}
+		}
+		catalog.remove(tableName);
+		persistedCounters.remove(tableName);
+		updatesSinceCheckpoint.remove(tableName);
+	}
+	
+	public static boolean checkpoint(String tableName)
+	{
+		WriteAheadLog.forTable(tableName).sync();
+		Table t = catalog.get(tableName);
+		if (t == null)
+		{
+			return true;
+		}
+		boolean res = true;
+		for (String columnName : t.getIndexedColumns())
+		{
+			res &= mergeIndexDeltas(tableName, columnName);
+		}
+		return storeTable(tableName, t) && res;
+	}
+	
+	public static boolean checkpointAll()
+	{
+		boolean res = true;
+		for (String tableName : catalog.keySet().toArray(new String[0]))
+		{
+			res &= checkpoint(tableName);
+		}
+		return res;
+	}
+	
+	private static boolean writeTableCounters(String tableName, int pageCount, int recordsCount)
+	{
+		File tableDirectory = new File(directory, tableName);
+		tableDirectory.mkdirs();
+	    File fl = new File(tableDirectory, tableName+".meta");
+	    
+		try 
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(bytes);
+			dos.writeInt(pageCount);
+			dos.writeInt(recordsCount);
+			dos.close();
+			return writeAtomically(fl, bytes.toByteArray());
+		} 
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+		return false;
+	}
+	
+	private static int[] readTableCounters(String tableName)
+	{
+		File tableDirectory = new File(directory, tableName);
+	    File fl = new File(tableDirectory, tableName+".meta");
+	    
+	    int[] res = null;
+	    try 
+		{
+			DataInputStream dis = new DataInputStream(new FileInputStream(fl));
+			res = new int[] { dis.readInt(), dis.readInt() };
+			dis.close();
+		} 
+		catch (Exception e)
+		{
+//			e.printStackTrace();
+		}
+	    return res;
+	}
+	
+    static boolean writeTable(String tableName, Table t)
 	{
 //		try {
 //			TimeUnit.MILLISECONDS.sleep(1);
@@ -31,11 +230,11 @@ public class FileManager
 	    
 		try 
 		{
-			FileOutputStream fout = new FileOutputStream(fl);
-			ObjectOutputStream oos = new ObjectOutputStream(fout);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bytes);
 			oos.writeObject(t);
 			oos.close();
-			return true;
+			return writeAtomically(fl, bytes.toByteArray());
 		} 
 		catch (Exception e)
 		{
@@ -45,7 +244,7 @@ public class FileManager
 		return false;
 	}
     
-    public static Table loadTable(String tableName)
+    static Table readTable(String tableName)
 	{
 //		try {
 //			TimeUnit.MILLISECONDS.sleep(1);
@@ -73,6 +272,123 @@ public class FileManager
 	}
     
 	public static boolean storeTablePage(String tableName, int pageNumber, Page p)
+	{
+		if (writeBack && bufferPool.put(tableName, pageNumber, p, true))
+		{
+			return true;
+		}
+		boolean stored = writeTablePage(tableName, pageNumber, p);
+		if (stored)
+		{
+			bufferPool.put(tableName, pageNumber, p, false);
+		}
+		return stored;
+	}
+	
+	public static Page loadTablePage(String tableName, int pageNumber)
+	{
+		Page res = bufferPool.get(tableName, pageNumber);
+		if (res == null)
+		{
+			res = readTablePage(tableName, pageNumber);
+			if (res != null)
+			{
+				bufferPool.put(tableName, pageNumber, res, false);
+			}
+		}
+		return res;
+	}
+	
+	// A pinned page stays in the pool until unpinned; pass dirty if it was modified in place
+	public static Page pinTablePage(String tableName, int pageNumber)
+	{
+		Page res = loadTablePage(tableName, pageNumber);
+		if (res != null && bufferPool.pin(tableName, pageNumber) == null)
+		{
+			bufferPool.put(tableName, pageNumber, res, false);
+			bufferPool.pin(tableName, pageNumber);
+		}
+		return res;
+	}
+	
+	public static void unpinTablePage(String tableName, int pageNumber, boolean dirty)
+	{
+		bufferPool.unpin(tableName, pageNumber, dirty);
+		if (dirty && !writeBack)
+		{
+			bufferPool.flush(tableName);
+		}
+	}
+	
+	public static void flush()
+	{
+		bufferPool.flush();
+		WriteAheadLog.syncAll();
+		if (segmentStorage)
+		{
+			SegmentStore.force();
+		}
+	}
+	
+	public static void setWriteBack(boolean enabled)
+	{
+		if (!enabled)
+		{
+			bufferPool.flush();
+		}
+		writeBack = enabled;
+	}
+	
+	public static void discardTablePages(String tableName)
+	{
+		bufferPool.discard(tableName);
+	}
+	
+	public static void setBufferPoolSize(int pages)
+	{
+		bufferPool.setCapacity(pages);
+	}
+	
+	public static BufferPool getBufferPool()
+	{
+		return bufferPool;
+	}
+	
+	public static void setSegmentStorage(boolean enabled)
+	{
+		bufferPool.flush();
+		segmentStorage = enabled;
+	}
+	
+	static boolean writeTablePage(String tableName, int pageNumber, Page p)
+	{
+		if (!segmentStorage)
+		{
+			return writePageFile(tableName, pageNumber, p.toBytes());
+		}
+		byte[] bytes = p.toBytes();
+		if (SegmentStore.write(tableName, pageNumber, bytes))
+		{
+			return true;
+		}
+		SegmentStore.clear(tableName, pageNumber);
+		return writePageFile(tableName, pageNumber, bytes);
+	}
+	
+	static Page readTablePage(String tableName, int pageNumber)
+	{
+		if (segmentStorage)
+		{
+			byte[] bytes = SegmentStore.read(tableName, pageNumber);
+			if (bytes != null)
+			{
+				return Page.fromBytes(bytes);
+			}
+		}
+		return readPageFile(tableName, pageNumber);
+	}
+	
+	private static boolean writePageFile(String tableName, int pageNumber, byte[] bytes)
 	{
 //		try {
 //			TimeUnit.MILLISECONDS.sleep(1);
@@ -83,24 +399,10 @@ public class FileManager
 		File tableDirectory = new File(directory, tableName);
 		tableDirectory.mkdir();
 	    File fl = new File(tableDirectory, ""+pageNumber+".db");
-	    
-		try 
-		{
-			FileOutputStream fout = new FileOutputStream(fl);
-			ObjectOutputStream oos = new ObjectOutputStream(fout);
-			oos.writeObject(p);
-			oos.close();
-			return true;
-		} 
-		catch (Exception e)
-		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		return false;
+	    return writeAtomically(fl, bytes);
 	}
 	
-	public static Page loadTablePage(String tableName, int pageNumber)
+	private static Page readPageFile(String tableName, int pageNumber)
 	{
 //		try {
 //			TimeUnit.MILLISECONDS.sleep(1);
@@ -114,10 +416,18 @@ public class FileManager
 	    Page res = null;
 	    try 
 		{
-			FileInputStream fin = new FileInputStream(fl);
-			ObjectInputStream ois = new ObjectInputStream(fin);
-			res = (Page)ois.readObject();
-			ois.close();
+			byte[] bytes = Files.readAllBytes(fl.toPath());
+			if (Page.isBinaryPage(bytes))
+			{
+				res = Page.fromBytes(bytes);
+			}
+			else
+			{
+				// Pages written before the binary format are plain Java serialization
+				ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+				res = (Page)ois.readObject();
+				ois.close();
+			}
 		} 
 		catch (Exception e)
 		{
@@ -127,7 +437,122 @@ public class FileManager
 	    return res;
 	}
 	
-	public static boolean storeTableIndex(String tableName, String columnName, BitMapIndex b)
+	// Indexes stay cached after their first load or store, like tables in the catalog
+	static ConcurrentHashMap<String, Index> indexCache = new ConcurrentHashMap<>();
+	
+	// Index inserts since the base image was last written, per cached index; once a column has
+	// indexMergeInterval of them a background merge rewrites the base and drops the delta tail
+	static ConcurrentHashMap<String, Integer> pendingIndexDeltas = new ConcurrentHashMap<>();
+	static int indexMergeInterval = 1000;
+	private static final Set<String> mergesScheduled = ConcurrentHashMap.newKeySet();
+	private static final ExecutorService indexMerger = Executors.newSingleThreadExecutor(r -> {
+		Thread th = new Thread(r, "index-merge");
+		th.setDaemon(true);
+		return th;
+	});
+	
+	// Writes the full index image; any delta tail is now part of it
+	public static boolean storeTableIndex(String tableName, String columnName, Index b)
+	{
+		indexCache.put(tableName + "/" + columnName, b);
+		if (writeTableIndex(tableName, columnName, b))
+		{
+			IndexDeltaLog.clear(tableName, columnName);
+			pendingIndexDeltas.remove(tableName + "/" + columnName);
+			return true;
+		}
+		return false;
+	}
+	
+	// Persists the values just inserted into a cached index by appending them to its delta tail.
+	// B+tree indexes write their own nodes and only keep a small header in the base image, and an
+	// index that is not the cached one has no base image to append to, so both are stored whole.
+	public static boolean storeIndexInserts(String tableName, String columnName, Index b, List<String> values)
+	{
+		String key = tableName + "/" + columnName;
+		if (b instanceof BTreeIndex || indexCache.get(key) != b)
+		{
+			return storeTableIndex(tableName, columnName, b);
+		}
+		IndexDeltaLog.appendAll(tableName, columnName, b.getRowCount() - values.size(), values);
+		if (pendingIndexDeltas.merge(key, values.size(), Integer::sum) >= indexMergeInterval
+				&& mergesScheduled.add(key))
+		{
+			indexMerger.execute(() -> {
+				// Readers keep going while the base is rewritten; inserts wait for the read lock
+				Lock lock = DBApp.lockFor(tableName).readLock();
+				lock.lock();
+				try
+				{
+					mergeIndexDeltas(tableName, columnName);
+				}
+				finally
+				{
+					lock.unlock();
+					mergesScheduled.remove(key);
+				}
+			});
+		}
+		return true;
+	}
+	
+	// Folds the delta tail of a cached index into its base image. Callers hold the table lock so
+	// no insert appends to the tail meanwhile.
+	static boolean mergeIndexDeltas(String tableName, String columnName)
+	{
+		String key = tableName + "/" + columnName;
+		synchronized (pendingIndexDeltas)
+		{
+			Index index = indexCache.get(key);
+			if (index == null || !pendingIndexDeltas.containsKey(key))
+			{
+				return true;
+			}
+			if (!writeTableIndex(tableName, columnName, index))
+			{
+				return false;
+			}
+			IndexDeltaLog.clear(tableName, columnName);
+			pendingIndexDeltas.remove(key);
+			return true;
+		}
+	}
+	
+	public static Index loadIndex(String tableName, String columnName)
+	{
+		Index res = indexCache.get(tableName + "/" + columnName);
+		if (res == null)
+		{
+			synchronized (indexCache)
+			{
+				res = indexCache.get(tableName + "/" + columnName);
+				if (res == null)
+				{
+					res = readTableIndex(tableName, columnName);
+					if (res != null)
+					{
+						indexCache.put(tableName + "/" + columnName, res);
+						// Base image plus delta tail; the merged image is written right away so the
+						// tail never has to be replayed twice or appended to after a torn entry
+						if (IndexDeltaLog.replay(tableName, columnName, res))
+						{
+							pendingIndexDeltas.put(tableName + "/" + columnName, 0);
+							mergeIndexDeltas(tableName, columnName);
+						}
+					}
+				}
+			}
+		}
+		return res;
+	}
+	
+	public static BitMapIndex loadTableIndex(String tableName, String columnName)
+	{
+		Index res = loadIndex(tableName, columnName);
+		return res instanceof BitMapIndex ? (BitMapIndex) res : null;
+	}
+	
+	private static boolean writeTableIndex(String tableName, String columnName, Index b)
 	{
 //		try {
 //			TimeUnit.MILLISECONDS.sleep(1);
@@ -141,11 +566,11 @@ public class FileManager
 	    
 		try 
 		{
-			FileOutputStream fout = new FileOutputStream(fl);
-			ObjectOutputStream oos = new ObjectOutputStream(fout);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bytes);
 			oos.writeObject(b);
 			oos.close();
-			return true;
+			return writeAtomically(fl, bytes.toByteArray());
 		} 
 		catch (Exception e)
 		{
@@ -155,7 +580,7 @@ public class FileManager
 		return false;
 	}
 	
-	public static BitMapIndex loadTableIndex(String tableName, String columnName)
+	private static Index readTableIndex(String tableName, String columnName)
 	{
 //		try {
 //			TimeUnit.MILLISECONDS.sleep(1);
@@ -166,12 +591,22 @@ public class FileManager
 		File tableDirectory = new File(directory, tableName);
 	    File fl = new File(tableDirectory, ""+columnName+".db");
 	    
-	    BitMapIndex res = null;
+	    Index res = null;
 	    try 
 		{
 			FileInputStream fin = new FileInputStream(fl);
-			ObjectInputStream ois = new ObjectInputStream(fin);
-			res = (BitMapIndex)ois.readObject();
+			ObjectInputStream ois = new ObjectInputStream(fin)
+			{
+				// Bitmap indexes written before the packed Bitmap format carry serialVersionUID 1; their
+				// fields match the current class and BitMapIndex.readObject converts the old bitmaps
+				@Override
+				protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException
+				{
+					ObjectStreamClass desc = super.readClassDescriptor();
+					return desc.getName().equals(BitMapIndex.class.getName()) ? ObjectStreamClass.lookup(BitMapIndex.class) : desc;
+				}
+			};
+			res = (Index)ois.readObject();
 			ois.close();
 		} 
 		catch (Exception e)
@@ -182,6 +617,79 @@ public class FileManager
 	    return res;
 	}
 	
+	// B+tree nodes live next to their index as <column>.btree<id>, one small file per node, so an
+	// insert or lookup only reads and writes the nodes on its path
+	public static boolean storeIndexNode(String tableName, String columnName, int nodeId, byte[] bytes)
+	{
+		File tableDirectory = new File(directory, tableName);
+		tableDirectory.mkdir();
+	    File fl = new File(tableDirectory, columnName+".btree"+nodeId);
+	    return writeAtomically(fl, bytes);
+	}
+	
+	public static byte[] loadIndexNode(String tableName, String columnName, int nodeId)
+	{
+		File tableDirectory = new File(directory, tableName);
+	    File fl = new File(tableDirectory, columnName+".btree"+nodeId);
+	    try 
+		{
+			return Files.readAllBytes(fl.toPath());
+		} 
+		catch (Exception e)
+		{
+//			e.printStackTrace();
+		}
+	    return null;
+	}
+	
+	public static void deleteIndexNodes(String tableName, String columnName)
+	{
+		File[] contents = new File(directory, tableName).listFiles();
+		if (contents != null)
+		{
+			for (File f : contents)
+			{
+				if (f.getName().startsWith(columnName+".btree"))
+				{
+					f.delete();
+				}
+			}
+		}
+	}
+	
+	// Writes a temporary file next to the target and renames it over the target, so readers and
+	// a crash mid-write see either the old or the new contents, never a torn file
+	private static boolean writeAtomically(File target, byte[] bytes)
+	{
+		File tmp = null;
+		try 
+		{
+			tmp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+			FileOutputStream fout = new FileOutputStream(tmp);
+			fout.write(bytes);
+			fout.close();
+			try
+			{
+				Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException e)
+			{
+				Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			return true;
+		} 
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			if (tmp != null)
+			{
+				tmp.delete();
+			}
+		}
+		return false;
+	}
+	
 	private static void deleteDir(File file) 
 	{
 	    File[] contents = file.listFiles();
@@ -196,14 +704,30 @@ public class FileManager
 	
 	public static void reset()
 	{
-		deleteDir(directory);
-		directory.mkdir();
+		bufferPool.clear();
+		catalog.clear();
+		// A background merge still running must not write into the fresh directory
+		synchronized (pendingIndexDeltas)
+		{
+			indexCache.clear();
+			pendingIndexDeltas.clear();
+			persistedCounters.clear();
+			updatesSinceCheckpoint.clear();
+			SegmentStore.closeAll();
+			WriteAheadLog.closeAll();
+			deleteDir(directory);
+			directory.mkdir();
+		}
 	}
 	
 	private static String traceDir(File file) 
 	{
 		String res = file.getName();
-		if(!file.getName().endsWith(".db"))
+		if(file.isFile() && !file.getName().endsWith(".db") && !file.getName().contains(".seg"))
+		{
+			return "";
+		}
+		if(!file.isFile())
 		{
 			res+="{ ";
 		}
@@ -212,10 +736,14 @@ public class FileManager
 			Arrays.sort(contents, Comparator.comparing(File::getName));
 	        for (File f : contents) 
 	        {
-	        	res+=traceDir(f)+" ";
+	        	String sub = traceDir(f);
+	        	if (!sub.isEmpty())
+	        	{
+	        		res+=sub+" ";
+	        	}
 	        }
 	    }
-	    if(!file.getName().endsWith(".db"))
+	    if(!file.isFile())
 		{
 			res+="}";
 		}
@@ -226,4 +754,4 @@ public class FileManager
 	{
 		return traceDir(directory);
 	}
-}
+}
\ No newline at end of file
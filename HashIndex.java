@@ -0,0 +1,79 @@
+package DBMS;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Value -> row ids, for unique or near-unique columns where a bitmap per value would cost a
+// word array per row. postings[0] holds how many of the following slots are in use.
+public class HashIndex implements Index {
+    private static final long serialVersionUID = 1L;
+    private HashMap<String, int[]> postings;
+    private int rowCount;
+
+    public HashIndex() {
+        postings = new HashMap<>();
+        rowCount = 0;
+    }
+
+    public void initialize(String[] values) {
+        postings.clear();
+        rowCount = 0;
+        for (String value : values) {
+            insert(value);
+        }
+    }
+
+    public void insert(String value) {
+        int[] rows = postings.get(value);
+        if (rows == null) {
+            rows = new int[2];
+        } else if (rows[0] + 1 == rows.length) {
+            rows = Arrays.copyOf(rows, rows.length * 2);
+        }
+        rows[++rows[0]] = rowCount;
+        postings.put(value, rows);
+        rowCount++;
+    }
+
+    public int[] rowIds(String value) {
+        int[] rows = postings.get(value);
+        return rows == null ? new int[0] : Arrays.copyOfRange(rows, 1, rows[0] + 1);
+    }
+
+    public Bitmap matching(String... values) {
+        Bitmap res = new Bitmap();
+        for (String value : values) {
+            for (int row : rowIds(value)) {
+                res.set(row);
+            }
+        }
+        res.setLength(rowCount);
+        return res;
+    }
+
+    public int cardinality(String value) {
+        int[] rows = postings.get(value);
+        return rows == null ? 0 : rows[0];
+    }
+
+    public int distinctCount() {
+        return postings.size();
+    }
+
+    public Map<String, Integer> valueCounts() {
+        HashMap<String, Integer> res = new HashMap<>();
+        for (Map.Entry<String, int[]> e : postings.entrySet()) {
+            res.put(e.getKey(), e.getValue()[0]);
+        }
+        return res;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public String getBitstream(String value) {
+        return postings.containsKey(value) ? matching(value).toBitString() : null;
+    }
+}
@@ -0,0 +1,26 @@
+package DBMS;
+
+import java.io.Serializable;
+import java.util.Map;
+
+// A secondary index over one column. Row ids are positions in insertion order, the same
+// positions a bitmap uses, so lookups from any index type can be combined as bitmaps.
+public interface Index extends Serializable {
+    void initialize(String[] values);
+
+    void insert(String value);
+
+    // Fresh bitmap of the rows holding any of the given values, safe for the caller to modify in place
+    Bitmap matching(String... values);
+
+    int cardinality(String value);
+
+    int distinctCount();
+
+    // Row count of every distinct value, read from the index alone
+    Map<String, Integer> valueCounts();
+
+    int getRowCount();
+
+    String getBitstream(String value);
+}
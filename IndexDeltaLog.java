@@ -0,0 +1,110 @@
+package DBMS;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Append-only tail of an index (<column>.delta next to its <column>.db base image), so an insert
+// writes one small record per indexed column instead of reserializing the whole index. Entries
+// use the WriteAheadLog framing:
+//   payload length, CRC32 of the payload, payload = row id, length-prefixed UTF-8 value (-1 for null)
+// FileManager folds the tail back into the base image once it grows past indexMergeInterval.
+public class IndexDeltaLog {
+
+    private static File file(String tableName, String columnName) {
+        return new File(new File(FileManager.directory, tableName), columnName + ".delta");
+    }
+
+    // Values get consecutive row ids starting at firstRowId and are written with a single write call
+    public static void appendAll(String tableName, String columnName, int firstRowId, List<String> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        byte[][] entries = new byte[values.size()][];
+        int size = 0;
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = encode(firstRowId + i, values.get(i));
+            size += entries[i].length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (byte[] entry : entries) {
+            buf.put(entry);
+        }
+        File fl = file(tableName, columnName);
+        fl.getParentFile().mkdir();
+        try (FileOutputStream out = new FileOutputStream(fl, true)) {
+            out.write(buf.array());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not append to " + fl, e);
+        }
+    }
+
+    private static byte[] encode(int rowId, String value) {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(8 + bytes.length);
+        payload.putInt(rowId).putInt(value == null ? -1 : bytes.length).put(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        ByteBuffer entry = ByteBuffer.allocate(8 + payload.capacity());
+        entry.putInt(payload.capacity()).putInt((int) crc.getValue()).put(payload.array());
+        return entry.array();
+    }
+
+    // Inserts the logged values the index does not hold yet, i.e. those from row id
+    // index.getRowCount() on, and stops at a gap or at the first torn or corrupt entry. Entries
+    // older than the base image are left over from a merge interrupted before the truncate and
+    // are skipped. Returns false when the index has no tail at all.
+    public static boolean replay(String tableName, String columnName, Index index) {
+        File fl = file(tableName, columnName);
+        if (!fl.exists()) {
+            return false;
+        }
+        long remaining = fl.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fl)))) {
+            while (true) {
+                int size = in.readInt();
+                int checksum = in.readInt();
+                remaining -= 8;
+                // A length running past the end of the file is a torn or corrupt header
+                if (size < 8 || size > remaining) {
+                    break;
+                }
+                byte[] payload = new byte[size];
+                in.readFully(payload);
+                remaining -= size;
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                ByteBuffer buf = ByteBuffer.wrap(payload);
+                int rowId = buf.getInt();
+                int len = buf.getInt();
+                if (rowId > index.getRowCount()) {
+                    break;
+                }
+                if (rowId == index.getRowCount()) {
+                    index.insert(len < 0 ? null : new String(payload, 8, len, StandardCharsets.UTF_8));
+                }
+            }
+        } catch (EOFException e) {
+            // Torn tail from an interrupted append
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    // Called once the base image holds every logged value
+    public static void clear(String tableName, String columnName) {
+        file(tableName, columnName).delete();
+    }
+}
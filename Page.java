@@ -1,18 +1,51 @@
 package DBMS;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.zip.CRC32;
 
 public class Page implements Serializable {
     private static final long serialVersionUID = 1L;
-    private ArrayList<String[]> records;
+    // Binary page layout (all ints big-endian):
+    //   header:   magic, version, slot count
+    //   slots:    one int per record, the byte offset of the record
+    //   records:  field count, then per field a length (-1 for null) and its UTF-8 bytes
+    static final int MAGIC = 0x44425047;
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+
+    private volatile ArrayList<String[]> records;
+    // Written in the dictionary-encoded columnar layout (see ColumnarPage) instead of row slots
+    private boolean columnar;
+    // Encoded image this page was read from; records are decoded from it on first full access and
+    // the image is kept until the page is modified, so concurrent readers never see it vanish
+    private transient ByteBuffer image;
+    private transient int slotCount;
+    private transient ColumnarPage columns;
 
     public Page() {
         super();
         this.records = new ArrayList<>();
     }
 
-    public boolean insert(String[] record) {
+    public Page(boolean columnar) {
+        this();
+        this.columnar = columnar;
+    }
+
+    public boolean isColumnar() {
+        return columnar;
+    }
+
+    // Synchronized with toBytes so a write-back from another thread never encodes a half-inserted page
+    public synchronized boolean insert(String[] record) {
+        materialize();
+        image = null;
+        columns = null;
         if (records.size() < DBApp.dataPageSize) {
             this.records.add(record);
             return true;
@@ -20,32 +53,259 @@ public class Page implements Serializable {
         return false;
     }
 
+    // New page holding this page's first n records. Inserts modify a copy rather than the cached
+    // page, so a reader holding the old version keeps seeing exactly the rows it loaded.
+    public Page copy(int n) {
+        Page res = new Page(columnar);
+        for (int i = 0; i < Math.min(n, size()); i++) {
+            res.records.add(getRecord(i));
+        }
+        return res;
+    }
+
+    public int size() {
+        return records != null ? records.size() : slotCount;
+    }
+
     public ArrayList<String[]> select() {
+        materialize();
         return this.records;
     }
 
+    // Every row, with only the projected columns decoded, in projection order
+    public ArrayList<String[]> select(int[] projection) {
+        ArrayList<String[]> res = new ArrayList<>();
+        for (int i = 0; i < size(); i++) {
+            res.add(getRecord(i, projection));
+        }
+        return res;
+    }
+
     public ArrayList<String[]> select(String[] cond) {
+        return select(cond, null);
+    }
+
+    // Rows matching cond; when projection is not null only those columns are decoded and returned
+    public ArrayList<String[]> select(String[] cond, int[] projection) {
         ArrayList<String[]> res = new ArrayList<>();
-        for (int i = 0; i < this.records.size(); i++) {
-            boolean flag = true;
+        ColumnarPage cols = columns;
+        if (records == null && cols != null) {
+            // Translate the condition to dictionary codes once, then compare ints per row
+            int[] codes = new int[cond.length];
+            for (int j = 0; j < cond.length; j++) {
+                codes[j] = cond[j] != null ? cols.codeOf(j, cond[j]) : -2;
+                if (codes[j] == -1) {
+                    return res;
+                }
+            }
+            for (int i = 0; i < slotCount; i++) {
+                boolean flag = true;
+                for (int j = 0; j < codes.length && flag; j++) {
+                    flag = codes[j] == -2 || !cols.hasColumn(j) || cols.code(i, j) == codes[j];
+                }
+                if (flag) {
+                    res.add(projection == null ? cols.getRecord(i) : getRecord(i, projection));
+                }
+            }
+            return res;
+        }
+        for (int i = 0; i < size(); i++) {
+            if (matches(i, cond)) {
+                res.add(projection == null ? getRecord(i) : getRecord(i, projection));
+            }
+        }
+        return res;
+    }
+
+    // Rows select(cond) would return, counted without building them
+    public int count(String[] cond) {
+        int res = 0;
+        for (int i = 0; i < size(); i++) {
+            if (matches(i, cond)) {
+                res++;
+            }
+        }
+        return res;
+    }
+
+    public boolean matches(int slot, String[] cond) {
+        ColumnarPage cols = columns;
+        if (records == null && cols != null) {
             for (int j = 0; j < cond.length; j++) {
                 if (cond[j] != null) {
-                    if (!cond[j].equals(this.records.get(i)[j])) {
-                        flag = false;
-                        break;
+                    int code = cols.codeOf(j, cond[j]);
+                    if (code < 0 || (cols.hasColumn(j) && cols.code(slot, j) != code)) {
+                        return false;
                     }
                 }
             }
-            if (flag) {
-                res.add(this.records.get(i));
+            return true;
+        }
+        for (int j = 0; j < cond.length; j++) {
+            if (cond[j] != null) {
+                if (!cond[j].equals(getField(slot, j))) {
+                    return false;
+                }
             }
         }
-        return res;
+        return true;
     }
 
     public ArrayList<String[]> select(int i) {
         ArrayList<String[]> res = new ArrayList<>();
-        res.add(this.records.get(i));
+        res.add(getRecord(i));
         return res;
     }
+
+    public String[] getRecord(int slot) {
+        if (records != null) {
+            return records.get(slot);
+        }
+        if (columns != null) {
+            return columns.getRecord(slot);
+        }
+        int pos = recordOffset(slot);
+        String[] record = new String[image.getInt(pos)];
+        pos += 4;
+        for (int j = 0; j < record.length; j++) {
+            int len = image.getInt(pos);
+            pos += 4;
+            record[j] = decode(pos, len);
+            pos += Math.max(len, 0);
+        }
+        return record;
+    }
+
+    public String[] getRecord(int slot, int[] projection) {
+        String[] record = new String[projection.length];
+        for (int j = 0; j < projection.length; j++) {
+            record[j] = getField(slot, projection[j]);
+        }
+        return record;
+    }
+
+    // Decodes a single field without materializing the rest of the record
+    public String getField(int slot, int column) {
+        if (records != null) {
+            String[] record = records.get(slot);
+            return column < record.length ? record[column] : null;
+        }
+        if (columns != null) {
+            return columns.getField(slot, column);
+        }
+        int pos = recordOffset(slot);
+        if (column >= image.getInt(pos)) {
+            return null;
+        }
+        pos += 4;
+        for (int j = 0; j < column; j++) {
+            pos += 4 + Math.max(image.getInt(pos), 0);
+        }
+        return decode(pos + 4, image.getInt(pos));
+    }
+
+    private int recordOffset(int slot) {
+        if (slot < 0 || slot >= slotCount) {
+            throw new IndexOutOfBoundsException("Slot " + slot + " out of " + slotCount);
+        }
+        return image.getInt(HEADER_SIZE + 4 * slot);
+    }
+
+    private String decode(int pos, int len) {
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        image.get(pos, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private synchronized void materialize() {
+        if (records == null) {
+            ArrayList<String[]> decoded = new ArrayList<>(slotCount);
+            for (int i = 0; i < slotCount; i++) {
+                decoded.add(getRecord(i));
+            }
+            records = decoded;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        out.defaultWriteObject();
+    }
+
+    public synchronized byte[] toBytes() {
+        if (records == null && image != null) {
+            return image.array().clone();
+        }
+        if (columnar) {
+            return ColumnarPage.encode(records);
+        }
+        int n = records.size();
+        byte[][][] fields = new byte[n][][];
+        int size = HEADER_SIZE + 4 * n;
+        for (int i = 0; i < n; i++) {
+            String[] record = records.get(i);
+            fields[i] = new byte[record.length][];
+            size += 4;
+            for (int j = 0; j < record.length; j++) {
+                if (record[j] != null) {
+                    fields[i][j] = record[j].getBytes(StandardCharsets.UTF_8);
+                    size += fields[i][j].length;
+                }
+                size += 4;
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(MAGIC).putInt(VERSION).putInt(n);
+        int offset = HEADER_SIZE + 4 * n;
+        for (int i = 0; i < n; i++) {
+            buf.putInt(offset);
+            offset += 4;
+            for (byte[] field : fields[i]) {
+                offset += 4 + (field != null ? field.length : 0);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            buf.putInt(fields[i].length);
+            for (byte[] field : fields[i]) {
+                if (field == null) {
+                    buf.putInt(-1);
+                } else {
+                    buf.putInt(field.length).put(field);
+                }
+            }
+        }
+        return buf.array();
+    }
+
+    public long checksum() {
+        CRC32 crc = new CRC32();
+        crc.update(toBytes());
+        return crc.getValue();
+    }
+
+    public static boolean isBinaryPage(byte[] bytes) {
+        return bytes.length >= HEADER_SIZE && ByteBuffer.wrap(bytes).getInt(0) == MAGIC;
+    }
+
+    public static Page fromBytes(byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        if (!isBinaryPage(bytes)) {
+            throw new IllegalArgumentException("Not a binary page image");
+        }
+        int version = buf.getInt(4);
+        if (version != VERSION && version != ColumnarPage.VERSION) {
+            throw new IllegalArgumentException("Unsupported page version " + version);
+        }
+        Page p = new Page(version == ColumnarPage.VERSION);
+        p.records = null;
+        p.image = buf;
+        p.slotCount = buf.getInt(8);
+        if (p.columnar) {
+            p.columns = new ColumnarPage(buf);
+        }
+        return p;
+    }
 }
\ No newline at end of file
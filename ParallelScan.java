@@ -0,0 +1,112 @@
+package DBMS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+
+// Loads the pages of a table and applies a function to each, splitting the page range into
+// contiguous chunks across worker threads. Results come back in page order whatever the
+// degree of parallelism, so callers can merge them deterministically.
+public class ParallelScan {
+    static volatile int parallelism = 1;
+    private static volatile ForkJoinPool pool;
+
+    // The new pool is published before the old one is shut down. shutdown() lets scans already
+    // running on the old pool finish; one that picked it up just before the swap is retried on
+    // the new pool.
+    public static synchronized void setParallelism(int degree) {
+        degree = Math.max(degree, 1);
+        if (degree != parallelism) {
+            ForkJoinPool old = pool;
+            pool = degree > 1 ? new ForkJoinPool(degree) : null;
+            parallelism = degree;
+            if (old != null) {
+                old.shutdown();
+            }
+        }
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    // Element i is fn applied to page i, or null if that page could not be loaded
+    public static <T> ArrayList<T> mapPages(String tableName, int pageCount, Function<Page, T> fn) {
+        return mapPages(tableName, pageCount, -1, i -> true, fn);
+    }
+
+    public static <T> ArrayList<T> mapPages(String tableName, int pageCount, IntPredicate include, Function<Page, T> fn) {
+        return mapPages(tableName, pageCount, -1, include, fn);
+    }
+
+    // Pages rejected by include are not loaded and their element stays null. Unless lastPageSize
+    // is negative, fn sees only the first lastPageSize rows of the last page (a Table.Snapshot).
+    public static <T> ArrayList<T> mapPages(String tableName, int pageCount, int lastPageSize, IntPredicate include,
+                                            Function<Page, T> fn) {
+        ArrayList<T> res = new ArrayList<>(pageCount);
+        for (int i = 0; i < pageCount; i++) {
+            res.add(null);
+        }
+        int workers = Math.min(parallelism, pageCount);
+        if (workers <= 1) {
+            scanRange(tableName, 0, pageCount, pageCount, lastPageSize, include, fn, res);
+            return res;
+        }
+        ArrayList<Callable<Void>> tasks = new ArrayList<>();
+        int chunk = (pageCount + workers - 1) / workers;
+        for (int from = 0; from < pageCount; from += chunk) {
+            int start = from;
+            int end = Math.min(from + chunk, pageCount);
+            tasks.add(() -> {
+                scanRange(tableName, start, end, pageCount, lastPageSize, include, fn, res);
+                return null;
+            });
+        }
+        try {
+            List<Future<Void>> futures;
+            while (true) {
+                try {
+                    futures = pool().invokeAll(tasks);
+                    break;
+                } catch (RejectedExecutionException e) {
+                    // The pool was retired by setParallelism after this scan picked it up
+                }
+            }
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Scan of " + tableName + " interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Scan of " + tableName + " failed", e.getCause());
+        }
+        return res;
+    }
+
+    // Workers write disjoint slots of a pre-sized list, and invokeAll publishes them to the caller
+    private static <T> void scanRange(String tableName, int from, int to, int pageCount, int lastPageSize,
+                                      IntPredicate include, Function<Page, T> fn, ArrayList<T> out) {
+        for (int i = from; i < to; i++) {
+            if (!include.test(i)) {
+                continue;
+            }
+            Page p = FileManager.loadTablePage(tableName, i);
+            if (p != null && i == pageCount - 1 && lastPageSize >= 0 && p.size() > lastPageSize) {
+                p = p.copy(lastPageSize);
+            }
+            if (p != null) {
+                out.set(i, fn.apply(p));
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package DBMS;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+
+// Keeps the pages of a table in a few fixed-size segment files (<table>.seg<n>), each memory-mapped
+// once; page n lives in slot n % pagesPerSegment of segment n / pagesPerSegment. Every slot holds two
+// copies of pageSlotSize bytes, each starting with a header
+//   length of the encoded page (0 = empty), version, CRC32 of length, version and page bytes
+// A write goes to the copy not holding the current version, page bytes first and header last, and a
+// read takes the valid copy with the highest version, so a torn write leaves the previous version.
+public class SegmentStore {
+    static int pageSlotSize = 8192;
+    static int pagesPerSegment = 1024;
+    private static final int HEADER_SIZE = 12;
+    private static final HashMap<String, MappedByteBuffer> segments = new HashMap<>();
+
+    private static File segmentFile(String tableName, int segmentNumber) {
+        return new File(new File(FileManager.directory, tableName), tableName + ".seg" + segmentNumber);
+    }
+
+    private static MappedByteBuffer segment(String tableName, int segmentNumber, boolean create) {
+        String key = tableName + "/" + segmentNumber;
+        MappedByteBuffer res = segments.get(key);
+        if (res == null) {
+            File fl = segmentFile(tableName, segmentNumber);
+            if (!create && !fl.exists()) {
+                return null;
+            }
+            fl.getParentFile().mkdirs();
+            try (RandomAccessFile raf = new RandomAccessFile(fl, "rw")) {
+                res = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 2L * pageSlotSize * pagesPerSegment);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+            segments.put(key, res);
+        }
+        return res;
+    }
+
+    // Offset of copy 0 or 1 of the page's slot
+    private static int copyOffset(int pageNumber, int copy) {
+        return ((pageNumber % pagesPerSegment) * 2 + copy) * pageSlotSize;
+    }
+
+    // Version of the copy, or -1 when it is empty, torn or corrupt
+    private static long version(MappedByteBuffer seg, int offset) {
+        int len = seg.getInt(offset);
+        if (len <= 0 || len > pageSlotSize - HEADER_SIZE) {
+            return -1;
+        }
+        int version = seg.getInt(offset + 4);
+        byte[] bytes = new byte[len];
+        seg.get(offset + HEADER_SIZE, bytes);
+        return checksum(version, bytes) == seg.getInt(offset + 8) ? version & 0xffffffffL : -1;
+    }
+
+    private static int checksum(int version, byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putInt(bytes.length).putInt(version).array());
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    public static synchronized byte[] read(String tableName, int pageNumber) {
+        if (pageNumber < 0) {
+            return null;
+        }
+        MappedByteBuffer seg = segment(tableName, pageNumber / pagesPerSegment, false);
+        if (seg == null) {
+            return null;
+        }
+        int first = copyOffset(pageNumber, 0);
+        int second = copyOffset(pageNumber, 1);
+        long v0 = version(seg, first);
+        long v1 = version(seg, second);
+        if (v0 < 0 && v1 < 0) {
+            return null;
+        }
+        int offset = v0 >= v1 ? first : second;
+        byte[] res = new byte[seg.getInt(offset)];
+        seg.get(offset + HEADER_SIZE, res);
+        return res;
+    }
+
+    // Returns false when the page does not fit in a slot; the caller keeps it in its own file instead
+    public static synchronized boolean write(String tableName, int pageNumber, byte[] bytes) {
+        if (pageNumber < 0 || bytes.length + HEADER_SIZE > pageSlotSize) {
+            return false;
+        }
+        MappedByteBuffer seg = segment(tableName, pageNumber / pagesPerSegment, true);
+        if (seg == null) {
+            return false;
+        }
+        long v0 = version(seg, copyOffset(pageNumber, 0));
+        long v1 = version(seg, copyOffset(pageNumber, 1));
+        int offset = copyOffset(pageNumber, v0 >= v1 ? 1 : 0);
+        int version = (int) (Math.max(v0, v1) + 1);
+        seg.put(offset + HEADER_SIZE, bytes);
+        seg.putInt(offset + 4, version);
+        seg.putInt(offset + 8, checksum(version, bytes));
+        seg.putInt(offset, bytes.length);
+        return true;
+    }
+
+    public static synchronized void clear(String tableName, int pageNumber) {
+        if (pageNumber >= 0) {
+            MappedByteBuffer seg = segment(tableName, pageNumber / pagesPerSegment, false);
+            if (seg != null) {
+                seg.putInt(copyOffset(pageNumber, 0), 0);
+                seg.putInt(copyOffset(pageNumber, 1), 0);
+            }
+        }
+    }
+
+    public static synchronized void force() {
+        for (MappedByteBuffer seg : segments.values()) {
+            seg.force();
+        }
+    }
+
+    public static synchronized void close(String tableName) {
+        Iterator<String> it = segments.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(tableName + "/")) {
+                it.remove();
+            }
+        }
+    }
+
+    public static synchronized void closeAll() {
+        segments.clear();
+    }
+}
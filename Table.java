@@ -1,27 +1,80 @@
 package DBMS;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class Table implements Serializable {
     private String name;
     private String[] columnsNames;
-    private int pageCount;
-    private int recordsCount;
+    private volatile int pageCount;
+    private volatile int recordsCount;
+    // Only populated in table images written before TraceLog; moved into events on load
     private ArrayList<String> trace;
+    private TraceLog events;
     private ArrayList<String> indexedColumns;
+    // Kind of each indexed column's index ("bitmap", "hash" or "btree"), so a lost index file is
+    // rebuilt as the same kind; null in images written when every index was a bitmap index
+    private HashMap<String, String> indexKinds;
+    // New pages of a columnar table use the dictionary-encoded ColumnarPage layout
+    private boolean columnar;
+    // Only populated in table images written before the write-ahead log; see migrateBackupRecords
     private ArrayList<String[]> backupRecords;
+    // CRC32 of each page as last written, used by validateRecords to skip untouched pages
+    private ArrayList<Long> pageChecksums;
+    // Null until DBApp.analyzeTable; afterwards updated by every insert
+    private TableStatistics statistics;
+    // Row ids of the records returned by the last validateRecords call, keyed by array identity
+    private transient IdentityHashMap<String[], Long> missingRowIds;
     private static final long serialVersionUID = 1L;
 
+    // What a scan may read: the first pageCount pages, and only lastPageSize rows of the last one.
+    // Inserts only append, and never modify a page object a reader may hold (see Page.copy), so
+    // a scan over a snapshot sees the table as of the snapshot while inserts continue.
+    public static class Snapshot {
+        final Table table;
+        final int pageCount;
+        final int recordsCount;
+        final int lastPageSize;
+
+        Snapshot(Table table, int pageCount, int recordsCount, int lastPageSize) {
+            this.table = table;
+            this.pageCount = pageCount;
+            this.recordsCount = recordsCount;
+            this.lastPageSize = lastPageSize;
+        }
+
+        // The table object the counters were read from
+        public Table getTable() {
+            return table;
+        }
+
+        public int getPageCount() {
+            return pageCount;
+        }
+
+        public int getRecordsCount() {
+            return recordsCount;
+        }
+    }
+
     public Table(String name, String[] columnsNames) {
         super();
         this.name = name;
         this.columnsNames = columnsNames;
-        this.trace = new ArrayList<>();
+        this.events = new TraceLog(name);
         this.indexedColumns = new ArrayList<>();
+        this.indexKinds = new HashMap<>();
         this.backupRecords = new ArrayList<>();
-        this.trace.add("Table created name:" + name + ", columnsNames:" + Arrays.toString(columnsNames));
+        this.events.add(new TraceEvent(TraceEvent.Type.CREATE_TABLE,
+                "Table created name:" + name + ", columnsNames:" + Arrays.toString(columnsNames)));
     }
 
     @Override
@@ -31,19 +84,78 @@ public class Table implements Serializable {
     }
 
     public void insert(String[] record) {
-        long startTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
         Page current = FileManager.loadTablePage(this.name, pageCount - 1);
+        if (current != null) {
+            current = current.copy(DBApp.dataPageSize);
+        }
+        boolean firstOnPage = false;
         if (current == null || !current.insert(record)) {
-            current = new Page();
+            current = newPage();
             current.insert(record);
+            firstOnPage = true;
+        }
+        // Statistics first: a record they cannot take must not leave a logged or stored row behind
+        if (statistics != null) {
+            statistics.add(firstOnPage ? pageCount : pageCount - 1, record, firstOnPage);
+        }
+        WriteAheadLog.forTable(this.name).append(recordsCount, record);
+        if (firstOnPage) {
             pageCount++;
         }
         FileManager.storeTablePage(this.name, pageCount - 1, current);
+        updatePageChecksum(pageCount - 1, current);
         recordsCount++;
-        backupRecords.add(record.clone());
-        long stopTime = System.currentTimeMillis();
-        this.trace.add("Inserted:" + Arrays.toString(record) + ", at page number:" + (pageCount - 1)
-                + ", execution time (mil):" + (stopTime - startTime));
+        long stopTime = System.nanoTime();
+        this.events.add(new TraceEvent(TraceEvent.Type.INSERT, "Inserted:" + Arrays.toString(record)
+                + ", at page number:" + (pageCount - 1), stopTime - startTime, 1, -1));
+    }
+
+    // Fills pages in memory and writes each touched page once
+    public void insertBatch(List<String[]> records) {
+        long startTime = System.nanoTime();
+        int firstPage = Math.max(pageCount - 1, 0);
+        if (!records.isEmpty()) {
+            Page current = pageCount > 0 ? FileManager.loadTablePage(this.name, pageCount - 1) : null;
+            if (current != null) {
+                current = current.copy(DBApp.dataPageSize);
+            }
+            if (statistics != null) {
+                // Before anything is logged or stored, replaying the page layout the loop below produces
+                int page = current != null ? pageCount - 1 : pageCount;
+                int size = current != null ? current.size() : 0;
+                for (String[] record : records) {
+                    if (size == DBApp.dataPageSize) {
+                        page++;
+                        size = 0;
+                    }
+                    statistics.add(page, record, size == 0);
+                    size++;
+                }
+            }
+            WriteAheadLog.forTable(this.name).appendAll(recordsCount, records);
+            if (current == null) {
+                current = newPage();
+                pageCount++;
+            }
+            for (String[] record : records) {
+                if (!current.insert(record)) {
+                    FileManager.storeTablePage(this.name, pageCount - 1, current);
+                    updatePageChecksum(pageCount - 1, current);
+                    current = newPage();
+                    current.insert(record);
+                    pageCount++;
+                }
+                recordsCount++;
+            }
+            FileManager.storeTablePage(this.name, pageCount - 1, current);
+            updatePageChecksum(pageCount - 1, current);
+        }
+        long elapsed = System.nanoTime() - startTime;
+        this.events.add(new TraceEvent(TraceEvent.Type.INSERT_BATCH, "Inserted batch of " + records.size()
+                + " records, at pages:" + firstPage + "-" + (pageCount - 1)
+                + ", rows/sec:" + (long) (records.size() * 1e9 / Math.max(elapsed, 1)),
+                elapsed, pageCount - firstPage, -1));
     }
 
     public String[] fixCond(String[] cols, String[] vals) {
@@ -58,16 +170,39 @@ public class Table implements Serializable {
         return res;
     }
 
+    // Caller must hold the table lock; the scan itself needs no lock
+    public Snapshot snapshot() {
+        Page last = pageCount > 0 ? FileManager.loadTablePage(this.name, pageCount - 1) : null;
+        return new Snapshot(this, pageCount, recordsCount, last != null ? last.size() : 0);
+    }
+
     public ArrayList<String[]> select(String[] cols, String[] vals) {
+        return select(snapshot(), cols, vals);
+    }
+
+    public ArrayList<String[]> select(Snapshot snapshot, String[] cols, String[] vals) {
+        return select(snapshot, cols, vals, null);
+    }
+
+    // With a projection (column positions) each matching row holds only those columns, in that
+    // order, and the other fields are never decoded; null returns whole records
+    public ArrayList<String[]> select(Snapshot snapshot, String[] cols, String[] vals, int[] projection) {
+        int pageCount = snapshot.pageCount;
         String[] cond = fixCond(cols, vals);
-        String tracer = "Select condition:" + Arrays.toString(cols) + "->" + Arrays.toString(vals);
+        String tracer = "Select condition:" + Arrays.toString(cols) + "->" + Arrays.toString(vals)
+                + projectionTrace(projection);
         ArrayList<ArrayList<Integer>> pagesResCount = new ArrayList<>();
         ArrayList<String[]> res = new ArrayList<>();
-        long startTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
+        ArrayList<ArrayList<String[]>> pages = ParallelScan.mapPages(this.name, pageCount, snapshot.lastPageSize,
+                i -> mayContain(i, cond), p -> p.select(cond, projection));
+        int pagesRead = 0;
         for (int i = 0; i < pageCount; i++) {
-            Page p = FileManager.loadTablePage(this.name, i);
-            ArrayList<String[]> pRes = p.select(cond);
-            if (pRes.size() > 0) {
+            ArrayList<String[]> pRes = pages.get(i);
+            if (pRes != null) {
+                pagesRead++;
+            }
+            if (pRes != null && pRes.size() > 0) {
                 ArrayList<Integer> pr = new ArrayList<>();
                 pr.add(i);
                 pr.add(pRes.size());
@@ -75,55 +210,133 @@ public class Table implements Serializable {
                 res.addAll(pRes);
             }
         }
-        long stopTime = System.currentTimeMillis();
-        tracer += ", Records per page:" + pagesResCount + ", records:" + res.size()
-                + ", execution time (mil):" + (stopTime - startTime);
-        this.trace.add(tracer);
+        long stopTime = System.nanoTime();
+        tracer += ", Records per page:" + pagesResCount + ", records:" + res.size();
+        this.events.add(new TraceEvent(TraceEvent.Type.SELECT_CONDITION, tracer, stopTime - startTime,
+                pagesRead, res.size()));
         return res;
     }
 
     public ArrayList<String[]> select(int pageNumber, int recordNumber) {
         String tracer = "Select pointer page:" + pageNumber + ", record:" + recordNumber;
         ArrayList<String[]> res = new ArrayList<>();
-        long startTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
         Page p = FileManager.loadTablePage(this.name, pageNumber);
         ArrayList<String[]> pRes = p.select(recordNumber);
         if (pRes.size() > 0) {
             res.addAll(pRes);
         }
-        long stopTime = System.currentTimeMillis();
-        tracer += ", total output count:" + res.size()
-                + ", execution time (mil):" + (stopTime - startTime);
-        this.trace.add(tracer);
+        long stopTime = System.nanoTime();
+        tracer += ", total output count:" + res.size();
+        this.events.add(new TraceEvent(TraceEvent.Type.SELECT_POINTER, tracer, stopTime - startTime, 1, res.size()));
         return res;
     }
 
     public ArrayList<String[]> select() {
+        return select(snapshot());
+    }
+
+    public ArrayList<String[]> select(Snapshot snapshot) {
+        return select(snapshot, (int[]) null);
+    }
+
+    public ArrayList<String[]> select(Snapshot snapshot, int[] projection) {
+        int pageCount = snapshot.pageCount;
         ArrayList<String[]> res = new ArrayList<>();
-        long startTime = System.currentTimeMillis();
-        for (int i = 0; i < pageCount; i++) {
-            Page p = FileManager.loadTablePage(this.name, i);
-            if (p != null) {
-                res.addAll(p.select());
+        long startTime = System.nanoTime();
+        for (ArrayList<String[]> records : ParallelScan.mapPages(this.name, pageCount, snapshot.lastPageSize, i -> true,
+                p -> projection == null ? p.select() : p.select(projection))) {
+            if (records != null) {
+                res.addAll(records);
             }
         }
-        long stopTime = System.currentTimeMillis();
-        this.trace.add("Select all pages:" + pageCount + ", records:" + res.size()
-                + ", execution time (mil):" + (stopTime - startTime));
+        long stopTime = System.nanoTime();
+        this.events.add(new TraceEvent(TraceEvent.Type.SELECT_ALL, "Select all pages:" + pageCount
+                + projectionTrace(projection) + ", records:" + res.size(), stopTime - startTime, pageCount, res.size()));
         return res;
     }
 
-    public String getFullTrace() {
-        String res = "";
-        for (int i = 0; i < this.trace.size(); i++) {
-            res += this.trace.get(i) + "\n";
+    private String projectionTrace(int[] projection) {
+        if (projection == null) {
+            return "";
+        }
+        String[] names = new String[projection.length];
+        for (int j = 0; j < projection.length; j++) {
+            names[j] = columnsNames[projection[j]];
         }
+        return ", Projection:" + Arrays.toString(names);
+    }
+
+    // Streaming counterparts of select for aggregates: pages are counted where they are read and
+    // no row is built. count skips the pages the zone maps rule out, like select(cols, vals).
+    public int count(Snapshot snapshot, String[] cols, String[] vals) {
+        String[] cond = fixCond(cols, vals);
+        int res = 0;
+        for (Integer pageCount : ParallelScan.mapPages(this.name, snapshot.pageCount, snapshot.lastPageSize,
+                i -> mayContain(i, cond), p -> p.count(cond))) {
+            if (pageCount != null) {
+                res += pageCount;
+            }
+        }
+        return res;
+    }
+
+    public Map<String, Integer> countByValue(Snapshot snapshot, int column) {
+        TreeMap<String, Integer> res = new TreeMap<>(Condition::compare);
+        for (HashMap<String, Integer> counts : ParallelScan.mapPages(this.name, snapshot.pageCount,
+                snapshot.lastPageSize, i -> true, p -> {
+                    HashMap<String, Integer> pageCounts = new HashMap<>();
+                    for (int slot = 0; slot < p.size(); slot++) {
+                        pageCounts.merge(p.getField(slot, column), 1, Integer::sum);
+                    }
+                    return pageCounts;
+                })) {
+            if (counts != null) {
+                counts.forEach((value, n) -> res.merge(value, n, Integer::sum));
+            }
+        }
+        return res;
+    }
+
+    // False when the zone maps prove the page holds no row matching cond
+    public boolean mayContain(int pageNumber, String[] cond) {
+        return statistics == null || statistics.mayContain(pageNumber, cond);
+    }
+
+    public TableStatistics getStatistics() {
+        return statistics;
+    }
+
+    public void setStatistics(TableStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    public Cursor scan(Snapshot snapshot, String[] cols, String[] vals, int limit) {
+        return new Cursor(this, snapshot, fixCond(cols, vals), Arrays.toString(cols) + "->" + Arrays.toString(vals),
+                limit);
+    }
+
+    public String getFullTrace() {
+        StringBuilder res = new StringBuilder();
+        events.render(res);
         return res + "Pages Count: " + pageCount + ", Records Count: " + recordsCount
                 + ", Indexed Columns: " + indexedColumns;
     }
 
     public String getLastTrace() {
-        return this.trace.get(this.trace.size() - 1);
+        return events.last().toString();
+    }
+
+    public void addTrace(TraceEvent event) {
+        events.add(event);
+    }
+
+    public void addTrace(String message) {
+        events.add(new TraceEvent(TraceEvent.Type.OTHER, message));
+    }
+
+    public ArrayList<TraceEvent> getTraceEvents() {
+        return events.events();
     }
 
     public int getColumnIndex(String colName) {
@@ -139,28 +352,86 @@ public class Table implements Serializable {
         return indexedColumns;
     }
 
-    public void addIndexedColumn(String colName) {
+    public void addIndexedColumn(String colName, String kind) {
         if (!indexedColumns.contains(colName)) {
             indexedColumns.add(colName);
         }
+        indexKinds.put(colName, kind);
     }
 
+    public String getIndexKind(String colName) {
+        return indexKinds.getOrDefault(colName, "bitmap");
+    }
+
+    // Every row ever inserted, replayed from the write-ahead log in insertion order
     public ArrayList<String[]> getBackupRecords() {
-        return backupRecords;
+        ArrayList<String[]> res = new ArrayList<>();
+        for (WriteAheadLog.Entry entry : WriteAheadLog.forTable(this.name).readAll()) {
+            res.add(entry.record);
+        }
+        return res;
+    }
+
+    // Moves rows kept in the serialized table by older versions into the write-ahead log. A crash
+    // before the migrated image is stored leaves the rows logged, so only the ones past the logged
+    // count are appended.
+    public boolean migrateBackupRecords() {
+        if (backupRecords == null || backupRecords.isEmpty()) {
+            return false;
+        }
+        WriteAheadLog log = WriteAheadLog.forTable(this.name);
+        int logged = Math.min(log.readAll().size(), backupRecords.size());
+        log.appendAll(logged, backupRecords.subList(logged, backupRecords.size()));
+        log.sync();
+        backupRecords.clear();
+        return true;
     }
 
     public int getOriginalPageNum(String[] record) {
-        int recordIndex = -1;
-        for (int i = 0; i < backupRecords.size(); i++) {
-            if (Arrays.equals(backupRecords.get(i), record)) {
-                recordIndex = i;
-                break;
+        for (WriteAheadLog.Entry entry : WriteAheadLog.forTable(this.name).readAll()) {
+            if (Arrays.equals(entry.record, record)) {
+                return (int) (entry.rowId / DBApp.dataPageSize);
             }
         }
-        if (recordIndex == -1) {
-            return -1; // Indicate record not found
+        return -1; // Indicate record not found
+    }
+
+    public void updatePageChecksum(int pageNumber, Page p) {
+        if (pageChecksums == null) {
+            pageChecksums = new ArrayList<>();
+        }
+        while (pageChecksums.size() <= pageNumber) {
+            pageChecksums.add(null);
+        }
+        pageChecksums.set(pageNumber, p.checksum());
+    }
+
+    public boolean isPageIntact(int pageNumber, Page p) {
+        if (p == null || pageChecksums == null || pageNumber >= pageChecksums.size()) {
+            return false;
         }
-        return recordIndex / DBApp.dataPageSize;
+        Long expected = pageChecksums.get(pageNumber);
+        return expected != null && expected == p.checksum();
+    }
+
+    public IdentityHashMap<String[], Long> getMissingRowIds() {
+        return missingRowIds != null ? missingRowIds : new IdentityHashMap<>();
+    }
+
+    public void setMissingRowIds(IdentityHashMap<String[], Long> missingRowIds) {
+        this.missingRowIds = missingRowIds;
+    }
+
+    public Page newPage() {
+        return new Page(columnar);
+    }
+
+    public boolean isColumnar() {
+        return columnar;
+    }
+
+    public void setColumnar(boolean columnar) {
+        this.columnar = columnar;
     }
 
     public String getName() {
@@ -175,8 +446,40 @@ public class Table implements Serializable {
         this.pageCount = newPageCount;
     }
 
+    public int getRecordsCount() {
+        return recordsCount;
+    }
+
+    public void setRecordsCount(int newRecordsCount) {
+        this.recordsCount = newRecordsCount;
+        if (statistics != null) {
+            statistics.reconcile(newRecordsCount);
+        }
+    }
+
+    // Rendered copy of the in-memory trace; use addTrace to record new entries
     public ArrayList<String> getTrace() {
-        return trace;
+        ArrayList<String> res = new ArrayList<>();
+        for (TraceEvent event : events.events()) {
+            res.add(event.toString());
+        }
+        return res;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (events == null) {
+            events = new TraceLog(name);
+        }
+        if (indexKinds == null) {
+            indexKinds = new HashMap<>();
+        }
+        if (trace != null) {
+            for (String line : trace) {
+                events.add(new TraceEvent(TraceEvent.Type.OTHER, line));
+            }
+            trace = null;
+        }
     }
 
     public String[] getColumnNames() {
@@ -0,0 +1,201 @@
+package DBMS;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Statistics gathered by DBApp.analyzeTable and kept current by every insert afterwards: the
+// row count, per column a distinct-count sketch and the most frequent values, and per page the
+// min/max of every column (a zone map) so scans can skip pages that cannot hold a value.
+// Distinct counts are HyperLogLog estimates; top values are tracked with the Space-Saving
+// algorithm, reported with the count each value is guaranteed to have, and are exact while a
+// column has at most topK * 4 distinct values.
+public class TableStatistics implements Serializable {
+    private static final long serialVersionUID = 1L;
+    static int topK = 10;
+    private static final int REGISTER_BITS = 12;
+
+    private final String[] columnsNames;
+    private long rowCount;
+    private final byte[][] registers;
+    // value -> {count, error}, where error is the count inherited from the value it replaced
+    private final ArrayList<HashMap<String, long[]>> frequent;
+    // Per page, min and max of each column in Condition.compare order; null for a page whose
+    // rows are not all known, which is then always scanned
+    private final ArrayList<String[]> pageMin;
+    private final ArrayList<String[]> pageMax;
+
+    public TableStatistics(String[] columnsNames) {
+        this.columnsNames = columnsNames;
+        this.registers = new byte[columnsNames.length][1 << REGISTER_BITS];
+        this.frequent = new ArrayList<>();
+        for (int i = 0; i < columnsNames.length; i++) {
+            frequent.add(new HashMap<>());
+        }
+        this.pageMin = new ArrayList<>();
+        this.pageMax = new ArrayList<>();
+    }
+
+    // firstOnPage is true when the record starts a new page. A record shorter than the schema is
+    // accepted by Table.insert; its missing fields count as null.
+    public synchronized void add(int pageNumber, String[] record, boolean firstOnPage) {
+        record = Arrays.copyOf(record, columnsNames.length);
+        rowCount++;
+        for (int c = 0; c < columnsNames.length; c++) {
+            addDistinct(c, record[c]);
+            addFrequent(frequent.get(c), record[c]);
+        }
+        if (firstOnPage) {
+            while (pageMin.size() <= pageNumber) {
+                pageMin.add(null);
+                pageMax.add(null);
+            }
+            pageMin.set(pageNumber, record);
+            pageMax.set(pageNumber, record.clone());
+        } else if (pageNumber < pageMin.size() && pageMin.get(pageNumber) != null) {
+            String[] min = pageMin.get(pageNumber);
+            String[] max = pageMax.get(pageNumber);
+            for (int c = 0; c < columnsNames.length; c++) {
+                if (Condition.compare(record[c], min[c]) < 0) {
+                    min[c] = record[c];
+                }
+                if (Condition.compare(record[c], max[c]) > 0) {
+                    max[c] = record[c];
+                }
+            }
+        }
+    }
+
+    // The table holds rows these statistics never saw, e.g. inserts after the last checkpoint
+    // before a crash; zone maps from the first page that may hold them on are dropped
+    public synchronized void reconcile(int recordsCount) {
+        if (recordsCount != rowCount) {
+            int firstUnknown = (int) (Math.min(recordsCount, rowCount) / DBApp.dataPageSize);
+            for (int p = firstUnknown; p < pageMin.size(); p++) {
+                pageMin.set(p, null);
+                pageMax.set(p, null);
+            }
+            rowCount = recordsCount;
+        }
+    }
+
+    // False only when the zone map proves no row of the page equals cond in every non-null column
+    // Synchronized with add: snapshot scans consult zone maps while inserts update them
+    public synchronized boolean mayContain(int pageNumber, String[] cond) {
+        if (pageNumber >= pageMin.size() || pageMin.get(pageNumber) == null) {
+            return true;
+        }
+        String[] min = pageMin.get(pageNumber);
+        String[] max = pageMax.get(pageNumber);
+        for (int c = 0; c < cond.length; c++) {
+            if (cond[c] != null && (Condition.compare(cond[c], min[c]) < 0 || Condition.compare(cond[c], max[c]) > 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addDistinct(int column, String value) {
+        long h = mix(value == null ? 0x5bd1e995L : value.hashCode());
+        int register = (int) (h >>> (64 - REGISTER_BITS));
+        byte rank = (byte) (Long.numberOfLeadingZeros((h << REGISTER_BITS) | (1L << (REGISTER_BITS - 1))) + 1);
+        if (rank > registers[column][register]) {
+            registers[column][register] = rank;
+        }
+    }
+
+    private static long mix(long h) {
+        h *= 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    // Space-Saving: a new value replaces the least frequent tracked one and inherits its count
+    private static void addFrequent(HashMap<String, long[]> counts, String value) {
+        long[] count = counts.get(value);
+        if (count != null) {
+            count[0]++;
+            return;
+        }
+        if (counts.size() < topK * 4) {
+            counts.put(value, new long[] { 1, 0 });
+            return;
+        }
+        Map.Entry<String, long[]> min = null;
+        for (Map.Entry<String, long[]> e : counts.entrySet()) {
+            if (min == null || e.getValue()[0] < min.getValue()[0]) {
+                min = e;
+            }
+        }
+        long inherited = min.getValue()[0];
+        counts.remove(min.getKey());
+        counts.put(value, new long[] { inherited + 1, inherited });
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public long distinctCount(String columnName) {
+        byte[] m = registers[columnIndex(columnName)];
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : m) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double estimate = 0.7213 / (1 + 1.079 / m.length) * m.length * m.length / sum;
+        if (estimate <= 2.5 * m.length && zeros > 0) {
+            estimate = m.length * Math.log((double) m.length / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    // Up to topK most frequent values with their counts, most frequent first
+    public List<Map.Entry<String, Long>> topValues(String columnName) {
+        ArrayList<Map.Entry<String, Long>> res = new ArrayList<>();
+        for (Map.Entry<String, long[]> e : frequent.get(columnIndex(columnName)).entrySet()) {
+            res.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue()[0] - e.getValue()[1]));
+        }
+        res.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return new ArrayList<>(res.subList(0, Math.min(topK, res.size())));
+    }
+
+    public String getPageMin(int pageNumber, String columnName) {
+        return pageNumber < pageMin.size() && pageMin.get(pageNumber) != null
+                ? pageMin.get(pageNumber)[columnIndex(columnName)] : null;
+    }
+
+    public String getPageMax(int pageNumber, String columnName) {
+        return pageNumber < pageMax.size() && pageMax.get(pageNumber) != null
+                ? pageMax.get(pageNumber)[columnIndex(columnName)] : null;
+    }
+
+    private int columnIndex(String columnName) {
+        for (int i = 0; i < columnsNames.length; i++) {
+            if (columnsNames[i].equals(columnName)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Column " + columnName + " does not exist");
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder("TableStatistics [rows=" + rowCount + ", pages=" + pageMin.size());
+        for (String column : columnsNames) {
+            res.append(", ").append(column).append(": distinct~").append(distinctCount(column))
+                    .append(" top=").append(topValues(column));
+        }
+        return res.append("]").toString();
+    }
+}
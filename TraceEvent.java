@@ -0,0 +1,91 @@
+package DBMS;
+
+import java.io.Serializable;
+import java.util.Locale;
+
+public class TraceEvent implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Type {
+        CREATE_TABLE, INSERT, INSERT_BATCH, SELECT_ALL, SELECT_CONDITION, SELECT_POINTER, SELECT_INDEX, SELECT_RANGE,
+        SCAN, AGGREGATE, CREATE_INDEX, ANALYZE, VALIDATE, RECOVER, OTHER
+    }
+
+    private final Type type;
+    private final String message;
+    private final long durationNanos;
+    private final int pagesTouched;
+    private final int rowsReturned;
+    private final String plan;
+
+    // durationNanos, pagesTouched and rowsReturned are -1 when they do not apply to the operation
+    public TraceEvent(Type type, String message, long durationNanos, int pagesTouched, int rowsReturned) {
+        this(type, message, durationNanos, pagesTouched, rowsReturned, null);
+    }
+
+    // plan describes the access path a select chose; it is kept with the event but not rendered
+    public TraceEvent(Type type, String message, long durationNanos, int pagesTouched, int rowsReturned, String plan) {
+        this.type = type;
+        this.message = message;
+        this.durationNanos = durationNanos;
+        this.pagesTouched = pagesTouched;
+        this.rowsReturned = rowsReturned;
+        this.plan = plan;
+    }
+
+    public TraceEvent(Type type, String message) {
+        this(type, message, -1, -1, -1);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public int getPagesTouched() {
+        return pagesTouched;
+    }
+
+    public int getRowsReturned() {
+        return rowsReturned;
+    }
+
+    public String getPlan() {
+        return plan;
+    }
+
+    // The line getFullTrace and getLastTrace have always shown, with the duration now in
+    // milliseconds to microsecond precision instead of whole milliseconds
+    @Override
+    public String toString() {
+        if (durationNanos < 0) {
+            return message;
+        }
+        return message + ", execution time (mil):" + String.format(Locale.ROOT, "%.3f", durationNanos / 1e6);
+    }
+
+    // Every recorded field, for DBApp.getTraceEvents; fields that do not apply are left out
+    public String describe() {
+        StringBuilder res = new StringBuilder(type.name()).append(": ").append(message);
+        if (durationNanos >= 0) {
+            res.append(", duration (ns):").append(durationNanos);
+        }
+        if (pagesTouched >= 0) {
+            res.append(", pages touched:").append(pagesTouched);
+        }
+        if (rowsReturned >= 0) {
+            res.append(", rows returned:").append(rowsReturned);
+        }
+        if (plan != null) {
+            res.append(", plan:").append(plan);
+        }
+        return res.toString();
+    }
+}
@@ -0,0 +1,87 @@
+package DBMS;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+// Fixed-size ring of trace events. When the ring is full the oldest half is either appended to
+// <table>.trace (spillToFile) or dropped, so memory and the serialized table stay bounded.
+public class TraceLog implements Serializable {
+    private static final long serialVersionUID = 1L;
+    static int defaultCapacity = 10000;
+    static boolean spillToFile = true;
+
+    private final String tableName;
+    private TraceEvent[] ring;
+    private int start;
+    private int size;
+
+    public TraceLog(String tableName) {
+        this.tableName = tableName;
+        this.ring = new TraceEvent[Math.max(defaultCapacity, 2)];
+    }
+
+    private TraceEvent get(int i) {
+        return ring[(start + i) % ring.length];
+    }
+
+    public synchronized void add(TraceEvent event) {
+        if (size == ring.length) {
+            evictOldest(ring.length / 2);
+        }
+        ring[(start + size) % ring.length] = event;
+        size++;
+    }
+
+    private void evictOldest(int count) {
+        if (spillToFile) {
+            StringBuilder lines = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                lines.append(get(i)).append("\n");
+            }
+            File tableDirectory = new File(FileManager.directory, tableName);
+            tableDirectory.mkdirs();
+            try (FileWriter out = new FileWriter(new File(tableDirectory, tableName + ".trace"), StandardCharsets.UTF_8, true)) {
+                out.write(lines.toString());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            ring[(start + i) % ring.length] = null;
+        }
+        start = (start + count) % ring.length;
+        size -= count;
+    }
+
+    public synchronized TraceEvent last() {
+        return size == 0 ? null : get(size - 1);
+    }
+
+    public synchronized ArrayList<TraceEvent> events() {
+        ArrayList<TraceEvent> res = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            res.add(get(i));
+        }
+        return res;
+    }
+
+    // Spilled lines first, then the events still in memory, one per line
+    public synchronized void render(StringBuilder out) {
+        File spilled = new File(new File(FileManager.directory, tableName), tableName + ".trace");
+        if (spillToFile && spilled.exists()) {
+            try {
+                out.append(new String(Files.readAllBytes(spilled.toPath()), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            out.append(get(i)).append("\n");
+        }
+    }
+}
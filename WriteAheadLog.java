@@ -0,0 +1,250 @@
+package DBMS;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Append-only log of inserted rows, one per table (<table>.wal). Each entry is
+//   payload length, CRC32 of the payload, payload = row id, field count, length-prefixed UTF-8 fields
+// Entries reach the OS on every append; fsync is grouped every syncEveryRecords entries or
+// syncIntervalMillis, whichever comes first. A background flusher syncs entries still pending when
+// the interval runs out, so a table that goes idle never keeps acknowledged rows unsynced.
+public class WriteAheadLog {
+    static int syncEveryRecords = 64;
+    static long syncIntervalMillis = 100;
+    private static final HashMap<String, WriteAheadLog> logs = new HashMap<>();
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread th = new Thread(r, "wal-sync");
+        th.setDaemon(true);
+        return th;
+    });
+
+    public static class Entry {
+        public final long rowId;
+        public final String[] record;
+
+        Entry(long rowId, String[] record) {
+            this.rowId = rowId;
+            this.record = record;
+        }
+    }
+
+    private final File file;
+    private FileChannel channel;
+    private int unsynced;
+    private long lastSync;
+    private boolean flushScheduled;
+
+    private WriteAheadLog(File file) {
+        this.file = file;
+        this.lastSync = System.currentTimeMillis();
+    }
+
+    public static synchronized WriteAheadLog forTable(String tableName) {
+        WriteAheadLog res = logs.get(tableName);
+        if (res == null) {
+            File tableDirectory = new File(FileManager.directory, tableName);
+            res = new WriteAheadLog(new File(tableDirectory, tableName + ".wal"));
+            logs.put(tableName, res);
+        }
+        return res;
+    }
+
+    private FileChannel channel() throws IOException {
+        if (channel == null) {
+            file.getParentFile().mkdirs();
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            long valid = validLength();
+            channel.truncate(valid);
+            channel.position(valid);
+        }
+        return channel;
+    }
+
+    private static byte[] encode(long rowId, String[] record) {
+        byte[][] fields = new byte[record.length][];
+        int size = 12;
+        for (int i = 0; i < record.length; i++) {
+            if (record[i] != null) {
+                fields[i] = record[i].getBytes(StandardCharsets.UTF_8);
+                size += fields[i].length;
+            }
+            size += 4;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        payload.putLong(rowId).putInt(record.length);
+        for (byte[] field : fields) {
+            if (field == null) {
+                payload.putInt(-1);
+            } else {
+                payload.putInt(field.length).put(field);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        ByteBuffer entry = ByteBuffer.allocate(8 + size);
+        entry.putInt(size).putInt((int) crc.getValue()).put(payload.array());
+        return entry.array();
+    }
+
+    public synchronized void append(long rowId, String[] record) {
+        ArrayList<String[]> records = new ArrayList<>();
+        records.add(record);
+        appendAll(rowId, records);
+    }
+
+    // Rows get consecutive ids starting at firstRowId and are written with a single write call
+    public synchronized void appendAll(long firstRowId, List<String[]> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        byte[][] entries = new byte[records.size()][];
+        int size = 0;
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = encode(firstRowId + i, records.get(i));
+            size += entries[i].length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (byte[] entry : entries) {
+            buf.put(entry);
+        }
+        buf.flip();
+        try {
+            FileChannel ch = channel();
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            unsynced += entries.length;
+            if (unsynced >= syncEveryRecords || System.currentTimeMillis() - lastSync >= syncIntervalMillis) {
+                sync();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                flusher.schedule(this::flush, syncIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not append to " + file, e);
+        }
+    }
+
+    private synchronized void flush() {
+        flushScheduled = false;
+        sync();
+    }
+
+    public synchronized void sync() {
+        try {
+            if (channel != null && unsynced > 0) {
+                channel.force(false);
+            }
+            unsynced = 0;
+            lastSync = System.currentTimeMillis();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Reads entries up to the first torn or corrupt one
+    public synchronized ArrayList<Entry> readAll() {
+        ArrayList<Entry> res = new ArrayList<>();
+        scan(res);
+        return res;
+    }
+
+    private long scan(ArrayList<Entry> out) {
+        long valid = 0;
+        if (!file.exists()) {
+            return valid;
+        }
+        long length = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int size = in.readInt();
+                int checksum = in.readInt();
+                // A length running past the end of the file is a torn or corrupt header
+                if (size < 12 || size > length - valid - 8) {
+                    break;
+                }
+                byte[] payload = new byte[size];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                if (out != null) {
+                    out.add(decode(payload));
+                }
+                valid += 8 + size;
+            }
+        } catch (EOFException e) {
+            // Torn tail from an interrupted append
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return valid;
+    }
+
+    private long validLength() {
+        return scan(null);
+    }
+
+    private static Entry decode(byte[] payload) {
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        long rowId = buf.getLong();
+        String[] record = new String[buf.getInt()];
+        for (int i = 0; i < record.length; i++) {
+            int len = buf.getInt();
+            if (len >= 0) {
+                record[i] = new String(payload, buf.position(), len, StandardCharsets.UTF_8);
+                buf.position(buf.position() + len);
+            }
+        }
+        return new Entry(rowId, record);
+    }
+
+    public synchronized void close() {
+        sync();
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel = null;
+    }
+
+    public static synchronized void syncAll() {
+        for (WriteAheadLog log : logs.values()) {
+            log.sync();
+        }
+    }
+
+    // Drops every entry, for a table re-created under the same name
+    public synchronized void truncate() {
+        close();
+        unsynced = 0;
+        file.delete();
+    }
+
+    public static synchronized void closeAll() {
+        for (WriteAheadLog log : logs.values()) {
+            log.close();
+        }
+        logs.clear();
+    }
+}
@@ -0,0 +1,49 @@
+package DBMS;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+// Shared setup for the benchmarks: points FileManager at a temporary directory and fills a
+// table with deterministic rows. Columns a, b and c each take `cardinality` distinct values in
+// different row orders; row 0 holds value v0 in all of them, so every condition matches.
+public class BenchmarkTables {
+    public static final String[] COLUMNS = { "id", "a", "b", "c", "d" };
+
+    public static File useTempDirectory() throws IOException {
+        File dir = Files.createTempDirectory("dbms-bench").toFile();
+        FileManager.directory = new File(dir, "Tables");
+        FileManager.directory.mkdirs();
+        // Benchmarks add millions of trace events; keep them in memory instead of appending to disk
+        TraceLog.spillToFile = false;
+        FileManager.reset();
+        return dir;
+    }
+
+    public static String[] row(int i, int cardinality) {
+        return new String[] { "i" + i, "v" + (i % cardinality), "v" + ((i * 7L) % cardinality),
+                "v" + ((i * 13L) % cardinality), "v" + ((i * 31L) % cardinality) };
+    }
+
+    public static void create(String tableName, int rows, int cardinality) {
+        DBApp.createTable(tableName, COLUMNS);
+        ArrayList<String[]> batch = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            batch.add(row(i, cardinality));
+        }
+        DBApp.insertBatch(tableName, batch);
+        FileManager.flush();
+    }
+
+    public static void delete(File dir) {
+        FileManager.reset();
+        File[] contents = dir.listFiles();
+        if (contents != null) {
+            for (File f : contents) {
+                delete(f);
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,38 @@
+package DBMS;
+
+import java.util.ArrayList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+public class DBAppBenchmark extends TableBenchmark {
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        next = rows;
+    }
+
+    // Row-at-a-time insert, maintaining the three bitmap indexes
+    @Benchmark
+    public void insert() {
+        DBApp.insert("bench", BenchmarkTables.row(next, cardinality));
+        next++;
+    }
+
+    @Benchmark
+    public ArrayList<String[]> selectAll() {
+        return DBApp.select("bench");
+    }
+
+    @Benchmark
+    public ArrayList<String[]> selectCondition() {
+        return DBApp.select("bench", new String[] { "d" }, new String[] { "v0" });
+    }
+
+    @Benchmark
+    public void createBitMapIndex() {
+        DBApp.createBitMapIndex("bench", "d");
+    }
+}
@@ -0,0 +1,38 @@
+package DBMS;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+// validateRecords and recoverRecords after `lostPages` page files are deleted before every call
+public class RecoveryBenchmark extends TableBenchmark {
+    @Param({ "0", "1", "10" })
+    public int lostPages;
+
+    // Deleting files is part of the setup, not the measured call
+    @Setup(Level.Invocation)
+    public void losePages() {
+        int pageCount = FileManager.loadTable("bench").getPageCount();
+        for (int i = 0; i < Math.min(lostPages, pageCount); i++) {
+            int pageNumber = (int) ((long) i * pageCount / lostPages);
+            new File(new File(FileManager.directory, "bench"), pageNumber + ".db").delete();
+        }
+        FileManager.discardTablePages("bench");
+    }
+
+    @Benchmark
+    public ArrayList<String[]> validateRecords() {
+        return DBApp.validateRecords("bench");
+    }
+
+    @Benchmark
+    public ArrayList<String[]> recoverRecords() {
+        ArrayList<String[]> missing = DBApp.validateRecords("bench");
+        DBApp.recoverRecords("bench", missing);
+        return missing;
+    }
+}
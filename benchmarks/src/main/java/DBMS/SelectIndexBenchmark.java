@@ -0,0 +1,30 @@
+package DBMS;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+public class SelectIndexBenchmark extends TableBenchmark {
+    // Number of indexed columns (a, b, c in that order) in the condition
+    @Param({ "1", "2", "3" })
+    public int indexedColumns;
+
+    private String[] cols;
+    private String[] vals;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        cols = Arrays.copyOfRange(new String[] { "a", "b", "c" }, 0, indexedColumns);
+        vals = new String[indexedColumns];
+        Arrays.fill(vals, "v0");
+    }
+
+    @Benchmark
+    public ArrayList<String[]> selectIndex() {
+        return DBApp.selectIndex("bench", cols, vals);
+    }
+}
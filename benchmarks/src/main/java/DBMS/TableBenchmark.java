@@ -0,0 +1,53 @@
+package DBMS;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Table "bench" of `rows` rows with `cardinality` distinct values per column and `pageSize` rows
+// per page, with bitmap indexes on a, b and c. Every benchmark method gets a freshly built table.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class TableBenchmark {
+    @Param({ "1000", "10000" })
+    public int rows;
+
+    @Param({ "10", "1000" })
+    public int cardinality;
+
+    @Param({ "2", "100" })
+    public int pageSize;
+
+    private File dir;
+
+    @Setup(Level.Trial)
+    public void setUpTable() throws Exception {
+        dir = BenchmarkTables.useTempDirectory();
+        DBApp.dataPageSize = pageSize;
+        BenchmarkTables.create("bench", rows, cardinality);
+        DBApp.createBitMapIndex("bench", "a");
+        DBApp.createBitMapIndex("bench", "b");
+        DBApp.createBitMapIndex("bench", "c");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTable() {
+        BenchmarkTables.delete(dir);
+    }
+}